@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.response.SpellCheckResponse;
+
+/**
+ * Spellcheck run only when a search returns few results.
+ * <p>
+ * In adaptive mode, <code>solr.spellcheck.mode</code>, the search runs without spellcheck and a second request
+ * limited to spellchecking, no rows and no collations, is sent to the <code>/spell</code> handler when the search
+ * found fewer than <code>solr.spellcheck.threshold</code> documents. The counters tell how often the second request
+ * is needed and how often it corrects something, to tune the threshold.
+ */
+public final class AdaptiveSpellcheck {
+
+    private static final String MODULE = AdaptiveSpellcheck.class.getName();
+    private static final String HANDLER = "/spell";
+    private static final LongAdder SEARCHES = new LongAdder();
+    private static final LongAdder SKIPPED = new LongAdder();
+    private static final LongAdder CHECKED = new LongAdder();
+    private static final LongAdder CORRECTED = new LongAdder();
+    private static final LongAdder FAILURES = new LongAdder();
+    private static final LongAdder CHECK_MILLIS = new LongAdder();
+
+    private AdaptiveSpellcheck() { }
+
+    /**
+     * Returns true when the searches of the index are spellchecked on demand, false when every search asks for
+     * spellcheck suggestions.
+     */
+    public static boolean isAdaptive(String indexName) {
+        String mode = UtilProperties.getPropertyValue(SolrUtil.SOLR_CONFIG_NAME, "solr.index." + indexName + ".spellcheck.mode");
+        if (UtilValidate.isEmpty(mode)) {
+            mode = UtilProperties.getPropertyValue(SolrUtil.SOLR_CONFIG_NAME, "solr.spellcheck.mode", "adaptive");
+        }
+        return !"always".equals(mode);
+    }
+
+    /**
+     * Returns the number of results below which a search is spellchecked.
+     */
+    public static int getThreshold() {
+        return UtilProperties.getPropertyAsInteger(SolrUtil.SOLR_CONFIG_NAME, "solr.spellcheck.threshold", 5);
+    }
+
+    /**
+     * Spellchecks the query when the search found fewer results than the threshold; returns null when the query is
+     * not checked or the check fails, the search results stay valid without suggestions.
+     */
+    public static SpellCheckResponse check(String indexName, String query, String queryFilter, long numFound) {
+        SEARCHES.increment();
+        if (numFound >= getThreshold() || UtilValidate.isEmpty(query) || "*:*".equals(query.trim())) {
+            SKIPPED.increment();
+            return null;
+        }
+        CHECKED.increment();
+        long start = System.currentTimeMillis();
+        HttpSolrClient client = null;
+        try {
+            client = SolrUtil.getHttpSolrClient(indexName);
+            // same query and filters as the search, so the matching comes from the caches of the searcher
+            SolrQuery solrQuery = new SolrQuery(query);
+            solrQuery.setRequestHandler(HANDLER);
+            if (UtilValidate.isNotEmpty(queryFilter)) {
+                solrQuery.setFilterQueries(queryFilter.split(" "));
+            }
+            solrQuery.setRows(0);
+            solrQuery.set("spellcheck", true);
+            solrQuery.set("spellcheck.collate", false);
+            solrQuery.set("spellcheck.extendedResults", false);
+            SpellCheckResponse spellCheckResponse = client.query(solrQuery).getSpellCheckResponse();
+            if (spellCheckResponse != null && UtilValidate.isNotEmpty(spellCheckResponse.getSuggestions())) {
+                CORRECTED.increment();
+            }
+            return spellCheckResponse;
+        } catch (Exception e) {
+            FAILURES.increment();
+            Debug.logWarning(e, "Solr: Cannot spellcheck " + query + " on index " + indexName, MODULE);
+            return null;
+        } finally {
+            CHECK_MILLIS.add(System.currentTimeMillis() - start);
+            if (client != null) {
+                try {
+                    client.close();
+                } catch (Exception e) {
+                    Debug.logError(e, MODULE);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the search, skipped and checked counters, with how many checks found corrections.
+     */
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long checked = CHECKED.sum();
+        stats.put("threshold", getThreshold());
+        stats.put("searchCount", SEARCHES.sum());
+        stats.put("skippedCount", SKIPPED.sum());
+        stats.put("checkedCount", checked);
+        stats.put("correctedCount", CORRECTED.sum());
+        stats.put("failedCount", FAILURES.sum());
+        stats.put("checkMillis", CHECK_MILLIS.sum());
+        stats.put("correctionRatio", checked > 0 ? (double) CORRECTED.sum() / checked : 0.0);
+        return stats;
+    }
+
+    public static void resetStats() {
+        SEARCHES.reset();
+        SKIPPED.reset();
+        CHECKED.reset();
+        CORRECTED.reset();
+        FAILURES.reset();
+        CHECK_MILLIS.reset();
+    }
+}
@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.StringUtil;
+import org.apache.ofbiz.base.util.UtilGenerics;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.GenericServiceException;
+import org.apache.ofbiz.service.LocalDispatcher;
+import org.apache.ofbiz.service.ServiceUtil;
+
+/**
+ * Runs search services on a dedicated executor and returns their results as {@link CompletableFuture}s, so that the
+ * independent searches of a page run concurrently.
+ * <p>
+ * The executor has <code>solr.search.async.threads</code> threads; only the services listed in
+ * <code>solr.search.async.services</code> can be run through it.
+ */
+public final class AsyncSearch {
+
+    private static final String MODULE = AsyncSearch.class.getName();
+    private static final int THREADS = UtilProperties.getPropertyAsInteger(SolrUtil.SOLR_CONFIG_NAME, "solr.search.async.threads", 8);
+    private static final long TIMEOUT = UtilProperties.getPropertyAsLong(SolrUtil.SOLR_CONFIG_NAME, "solr.search.async.timeout", 10000);
+    private static final String DEFAULT_SERVICES = "runSolrQuery,solrKeywordSearch,solrProductsSearch,solrAvailableCategories,solrSideDeepCategory";
+    private static final Set<String> SERVICES = StringUtil.split(UtilProperties.getPropertyValue(SolrUtil.SOLR_CONFIG_NAME,
+            "solr.search.async.services", DEFAULT_SERVICES), ",").stream().map(String::trim).collect(Collectors.toSet());
+    private static final ExecutorService EXECUTOR = createExecutor();
+
+    private AsyncSearch() { }
+
+    private static ExecutorService createExecutor() {
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(Math.max(1, THREADS), runnable -> {
+            Thread thread = new Thread(runnable, "solr-search-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Runs the search service asynchronously; the future completes with the service result, error results included,
+     * or exceptionally when the service cannot be called.
+     */
+    public static CompletableFuture<Map<String, Object>> submit(LocalDispatcher dispatcher, String serviceName, Map<String, Object> context) {
+        if (!SERVICES.contains(serviceName)) {
+            CompletableFuture<Map<String, Object>> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(new IllegalArgumentException("Service " + serviceName + " cannot be run as an async search"));
+            return rejected;
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return dispatcher.runSync(serviceName, context);
+            } catch (GenericServiceException e) {
+                throw new CompletionException(e);
+            }
+        }, EXECUTOR);
+    }
+
+    /**
+     * Runs all searches concurrently and waits for the slowest one, at most the timeout in milliseconds. The results
+     * are keyed like the searches; searches that failed or timed out get an error result.
+     */
+    public static Map<String, Map<String, Object>> runAll(LocalDispatcher dispatcher, Map<String, String> serviceNames,
+            Map<String, Map<String, Object>> contexts, long timeout) {
+        Map<String, CompletableFuture<Map<String, Object>>> futures = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : serviceNames.entrySet()) {
+            Map<String, Object> context = contexts.get(entry.getKey());
+            futures.put(entry.getKey(), submit(dispatcher, entry.getValue(), context != null ? context : new HashMap<>()));
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        Map<String, Map<String, Object>> results = new LinkedHashMap<>();
+        for (Map.Entry<String, CompletableFuture<Map<String, Object>>> entry : futures.entrySet()) {
+            try {
+                results.put(entry.getKey(), entry.getValue().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+            } catch (TimeoutException e) {
+                entry.getValue().cancel(true);
+                results.put(entry.getKey(), ServiceUtil.returnError("Search " + entry.getKey() + " timed out after " + timeout + " ms"));
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause() instanceof CompletionException && e.getCause().getCause() != null
+                        ? e.getCause().getCause() : e.getCause();
+                Debug.logError(cause, "Solr: Search " + entry.getKey() + " failed", MODULE);
+                results.put(entry.getKey(), ServiceUtil.returnError(cause.toString()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                results.put(entry.getKey(), ServiceUtil.returnError("Search " + entry.getKey() + " interrupted"));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Runs the searches of a page concurrently. Each entry of the searches map names a sub-search and holds its
+     * context with the service to run in <code>serviceName</code>.
+     */
+    public static Map<String, Object> searchPage(DispatchContext dctx, Map<String, Object> context) {
+        Map<String, Map<String, Object>> searches = UtilGenerics.cast(context.get("searches"));
+        Map<String, String> serviceNames = new LinkedHashMap<>();
+        Map<String, Map<String, Object>> contexts = new HashMap<>();
+        for (Map.Entry<String, Map<String, Object>> entry : searches.entrySet()) {
+            Map<String, Object> searchContext = new HashMap<>(entry.getValue());
+            String serviceName = (String) searchContext.remove("serviceName");
+            if (UtilValidate.isEmpty(serviceName)) {
+                return ServiceUtil.returnError("Search " + entry.getKey() + " has no serviceName");
+            }
+            if (context.get("userLogin") != null && !searchContext.containsKey("userLogin")) {
+                searchContext.put("userLogin", context.get("userLogin"));
+            }
+            if (context.get("locale") != null && !searchContext.containsKey("locale")) {
+                searchContext.put("locale", context.get("locale"));
+            }
+            serviceNames.put(entry.getKey(), serviceName);
+            contexts.put(entry.getKey(), searchContext);
+        }
+        long timeout = context.get("timeout") != null ? (Long) context.get("timeout") : TIMEOUT;
+        long start = System.currentTimeMillis();
+        Map<String, Map<String, Object>> results = runAll(dctx.getDispatcher(), serviceNames, contexts, timeout);
+        Map<String, String> errors = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<String, Object>> entry : results.entrySet()) {
+            if (ServiceUtil.isError(entry.getValue())) {
+                errors.put(entry.getKey(), ServiceUtil.getErrorMessage(entry.getValue()));
+            }
+        }
+        Map<String, Object> result = ServiceUtil.returnSuccess();
+        result.put("results", results);
+        result.put("errors", errors);
+        result.put("elapsedTime", System.currentTimeMillis() - start);
+        return result;
+    }
+}
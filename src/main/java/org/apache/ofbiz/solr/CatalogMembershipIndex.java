@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilDateTime;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.ServiceUtil;
+
+/**
+ * In-memory index of the effective <code>ProdCatalogCategory</code> rows, answering both
+ * category to catalogs and catalog to categories lookups.
+ * <p>
+ * The index is loaded with one query and dropped by the <code>ProdCatalogCategory</code> ECA,
+ * or when a row of the index starts or ends being effective.
+ */
+public final class CatalogMembershipIndex {
+
+    private static final String MODULE = CatalogMembershipIndex.class.getName();
+    private static final Map<String, CatalogMembershipIndex> INDEXES = new ConcurrentHashMap<>();
+
+    private final Map<String, List<String>> catalogIdsByCategoryId;
+    private final Map<String, List<GenericValue>> membersByCatalogId;
+    private final Timestamp validUntil;
+
+    private CatalogMembershipIndex(Map<String, List<String>> catalogIdsByCategoryId, Map<String, List<GenericValue>> membersByCatalogId,
+            Timestamp validUntil) {
+        Map<String, List<String>> catalogIds = new HashMap<>();
+        for (Map.Entry<String, List<String>> entry : catalogIdsByCategoryId.entrySet()) {
+            catalogIds.put(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
+        }
+        Map<String, List<GenericValue>> members = new HashMap<>();
+        for (Map.Entry<String, List<GenericValue>> entry : membersByCatalogId.entrySet()) {
+            members.put(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
+        }
+        this.catalogIdsByCategoryId = Collections.unmodifiableMap(catalogIds);
+        this.membersByCatalogId = Collections.unmodifiableMap(members);
+        this.validUntil = validUntil;
+    }
+
+    /**
+     * Returns the current index of the delegator, loading it if missing or outdated.
+     */
+    public static CatalogMembershipIndex get(Delegator delegator) throws GenericEntityException {
+        CatalogMembershipIndex index = INDEXES.get(delegator.getDelegatorName());
+        if (index == null || (index.validUntil != null && !index.validUntil.after(UtilDateTime.nowTimestamp()))) {
+            index = load(delegator);
+            INDEXES.put(delegator.getDelegatorName(), index);
+        }
+        return index;
+    }
+
+    public static void invalidate(Delegator delegator) {
+        INDEXES.remove(delegator.getDelegatorName());
+    }
+
+    private static CatalogMembershipIndex load(Delegator delegator) throws GenericEntityException {
+        Timestamp now = UtilDateTime.nowTimestamp();
+        Timestamp validUntil = null;
+        Map<String, List<String>> catalogIdsByCategoryId = new HashMap<>();
+        Map<String, List<GenericValue>> membersByCatalogId = new HashMap<>();
+        List<GenericValue> catalogCategories = EntityQuery.use(delegator).from("ProdCatalogCategory")
+                .orderBy("prodCatalogId", "sequenceNum", "productCategoryId").queryList();
+        for (GenericValue catalogCategory : catalogCategories) {
+            Timestamp fromDate = catalogCategory.getTimestamp("fromDate");
+            Timestamp thruDate = catalogCategory.getTimestamp("thruDate");
+            if (fromDate != null && fromDate.after(now)) {
+                validUntil = validUntil == null || fromDate.before(validUntil) ? fromDate : validUntil;
+                continue;
+            }
+            if (thruDate != null) {
+                if (!thruDate.after(now)) {
+                    continue;
+                }
+                validUntil = validUntil == null || thruDate.before(validUntil) ? thruDate : validUntil;
+            }
+            String prodCatalogId = catalogCategory.getString("prodCatalogId");
+            List<String> catalogIds = catalogIdsByCategoryId.computeIfAbsent(catalogCategory.getString("productCategoryId"),
+                    k -> new ArrayList<>(1));
+            if (!catalogIds.contains(prodCatalogId)) {
+                catalogIds.add(prodCatalogId);
+            }
+            catalogCategory.setImmutable();
+            membersByCatalogId.computeIfAbsent(prodCatalogId, k -> new ArrayList<>()).add(catalogCategory);
+        }
+        if (Debug.verboseOn()) {
+            Debug.logVerbose("Solr: Loaded catalog memberships of " + catalogIdsByCategoryId.size() + " categories", MODULE);
+        }
+        return new CatalogMembershipIndex(catalogIdsByCategoryId, membersByCatalogId, validUntil);
+    }
+
+    /**
+     * Returns the catalogs the category is directly assigned to.
+     */
+    public List<String> getCatalogIds(String productCategoryId) {
+        return catalogIdsByCategoryId.getOrDefault(productCategoryId, Collections.emptyList());
+    }
+
+    /**
+     * Returns the categories of the catalog ordered by sequence, optionally of one prodCatalogCategoryTypeId only.
+     */
+    public List<String> getCategoryIds(String prodCatalogId, String prodCatalogCategoryTypeId) {
+        List<String> categoryIds = new ArrayList<>();
+        for (GenericValue member : getCatalogCategories(prodCatalogId)) {
+            if (prodCatalogCategoryTypeId == null || prodCatalogCategoryTypeId.equals(member.getString("prodCatalogCategoryTypeId"))) {
+                categoryIds.add(member.getString("productCategoryId"));
+            }
+        }
+        return categoryIds;
+    }
+
+    /**
+     * Returns the effective ProdCatalogCategory rows of the catalog ordered by sequence.
+     */
+    public List<GenericValue> getCatalogCategories(String prodCatalogId) {
+        return membersByCatalogId.getOrDefault(prodCatalogId, Collections.emptyList());
+    }
+
+    /**
+     * Drops the index once the transaction changing a catalog category has ended - intended for use with ECAs.
+     */
+    public static Map<String, Object> invalidateCatalogMembership(DispatchContext dctx, Map<String, Object> context) {
+        Delegator delegator = dctx.getDelegator();
+        invalidate(delegator);
+        try {
+            SolrUtil.afterTransaction(() -> invalidate(delegator));
+        } catch (GenericEntityException e) {
+            Debug.logError(e, e.getMessage(), MODULE);
+            return ServiceUtil.returnError(e.toString());
+        }
+        return ServiceUtil.returnSuccess();
+    }
+}
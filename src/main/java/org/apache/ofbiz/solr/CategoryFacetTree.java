@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest.METHOD;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.response.json.BucketBasedJsonFacet;
+import org.apache.solr.client.solrj.response.json.BucketJsonFacet;
+
+/**
+ * Category tree with product counts, read with a single JSON facet request on the <code>cat_tree</code> field.
+ * <p>
+ * <code>cat_tree</code> holds the category paths of the product without level, ie "TOP/CHILD", and is tokenized
+ * into all its ancestor paths, so one terms facet returns the count of every visible node of the tree. The
+ * level/trail names of the <code>cat</code> field are rebuilt from the depth of the paths, letting the category
+ * navigation services keep their output when <code>solr.category.facet.mode=hierarchical</code>.
+ */
+public final class CategoryFacetTree {
+
+    private static final String MODULE = CategoryFacetTree.class.getName();
+    private static final String FACET_NAME = "tree";
+
+    private final Map<String, Long> countsByPath;
+    private final Map<String, List<String>> childPathsByPath;
+    private final QueryResponse response;
+
+    private CategoryFacetTree(Map<String, Long> countsByPath, QueryResponse response) {
+        this.countsByPath = countsByPath;
+        this.childPathsByPath = new HashMap<>();
+        for (String path : countsByPath.keySet()) {
+            int separator = path.lastIndexOf('/');
+            String parentPath = separator > 0 ? path.substring(0, separator) : "";
+            childPathsByPath.computeIfAbsent(parentPath, k -> new ArrayList<>()).add(path);
+        }
+        this.response = response;
+    }
+
+    /**
+     * Queries the category tree of the products of the catalog, optionally restricted to the products below
+     * a category path or to one product. When displayProducts is set the page of products is returned along.
+     */
+    public static CategoryFacetTree query(String indexName, String catalogId, String categoryPath, String productId, boolean displayProducts,
+            int viewIndex, int viewSize) throws IOException, SolrServerException {
+        // same matches as SolrUtil.categoriesAvailable, where the inStock clause is optional next to a required one
+        SolrQuery solrQuery = new SolrQuery();
+        if (UtilValidate.isNotEmpty(categoryPath)) {
+            solrQuery.setQuery("{!term f=cat_tree}" + categoryPath);
+        } else if (productId != null) {
+            solrQuery.setQuery("inStock[1 TO *] +productId:" + productId);
+        } else {
+            solrQuery.setQuery("inStock[1 TO *]");
+        }
+        if (catalogId != null) {
+            solrQuery.addFilterQuery("catalog:" + catalogId);
+        }
+        if (displayProducts) {
+            solrQuery.setRows(viewSize > -1 ? viewSize : 50000);
+            if (viewIndex > -1) {
+                solrQuery.setStart(viewIndex);
+            }
+        } else {
+            solrQuery.setRows(0);
+        }
+        solrQuery.set("json.facet", "{" + FACET_NAME + ":{type:terms,field:cat_tree,limit:-1,mincount:1,sort:index}}");
+        if (Debug.verboseOn()) {
+            Debug.logVerbose("Solr: category tree query: " + solrQuery, MODULE);
+        }
+
+        HttpSolrClient client = null;
+        try {
+            client = SolrUtil.getHttpSolrClient(indexName);
+            QueryResponse response = client.query(solrQuery, METHOD.POST);
+            Map<String, Long> countsByPath = new LinkedHashMap<>();
+            BucketBasedJsonFacet facet = response.getJsonFacetingResponse() != null
+                    ? response.getJsonFacetingResponse().getBucketBasedFacets(FACET_NAME) : null;
+            if (facet != null) {
+                for (BucketJsonFacet bucket : facet.getBuckets()) {
+                    countsByPath.put(bucket.getVal().toString(), bucket.getCount());
+                }
+            }
+            return new CategoryFacetTree(countsByPath, response);
+        } finally {
+            if (client != null) {
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the path of the first trail of the category, ie "TOP/CHILD".
+     */
+    public static String getCategoryPath(Delegator delegator, String productCategoryId) throws GenericEntityException {
+        return String.join("/", CategoryTreeSnapshot.get(delegator).getTrails(productCategoryId).get(0));
+    }
+
+    /**
+     * Returns the <code>cat_tree</code> values of level/trail strings, ie "TOP/CHILD" for "1/TOP/CHILD".
+     */
+    public static List<String> toPaths(Collection<String> trailMembers) {
+        Set<String> paths = new LinkedHashSet<>();
+        for (String trailMember : trailMembers) {
+            int separator = trailMember.indexOf('/');
+            paths.add(separator >= 0 ? trailMember.substring(separator + 1) : trailMember);
+        }
+        return new ArrayList<>(paths);
+    }
+
+    /**
+     * Returns the level/trail name of a path as indexed in the <code>cat</code> field, ie "1/TOP/CHILD" for "TOP/CHILD".
+     */
+    public static String toTrailName(String path) {
+        int level = 0;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '/') {
+                level++;
+            }
+        }
+        return level + "/" + path;
+    }
+
+    public QueryResponse getResponse() {
+        return response;
+    }
+
+    public long getNumFound() {
+        return response.getResults() != null ? response.getResults().getNumFound() : 0;
+    }
+
+    public long getCount(String path) {
+        return countsByPath.getOrDefault(path, 0L);
+    }
+
+    /**
+     * Returns the paths of the direct children of a path, or of the top categories for an empty path.
+     */
+    public List<String> getChildPaths(String path) {
+        List<String> childPaths = childPathsByPath.get(path == null ? "" : path);
+        return childPaths != null ? childPaths : new ArrayList<>();
+    }
+
+    /**
+     * Returns the product count of every category of the tree keyed by its level/trail name,
+     * same as the <code>cat</code> facet of {@link SolrUtil#categoriesAvailable}.
+     */
+    public Map<String, Object> getTrailCounts() {
+        Map<String, Object> categories = new HashMap<>();
+        for (Map.Entry<String, Long> entry : countsByPath.entrySet()) {
+            categories.put(toTrailName(entry.getKey()), Long.toString(entry.getValue()));
+        }
+        return categories;
+    }
+
+    /**
+     * Returns the side-deep menus of a trail: for each category of the trail the list of its child
+     * categories keyed by "menu-[level]", in the shape of the <code>solrSideDeepCategory</code> service.
+     */
+    public Map<String, List<Map<String, Object>>> getSideDeepMenus(List<String> trail) {
+        Map<String, List<Map<String, Object>>> menus = new HashMap<>();
+        StringBuilder path = new StringBuilder();
+        for (int level = 0; level < trail.size(); level++) {
+            if (level > 0) {
+                path.append('/');
+            }
+            path.append(trail.get(level));
+            List<Map<String, Object>> categories = new ArrayList<>();
+            for (String childPath : getChildPaths(path.toString())) {
+                Map<String, Object> catMap = new HashMap<>();
+                catMap.put("catId", childPath.substring(childPath.lastIndexOf('/') + 1));
+                catMap.put("path", toTrailName(childPath));
+                catMap.put("parentCategory", level > 0 ? path.toString() : null);
+                catMap.put("count", Long.toString(countsByPath.get(childPath)));
+                categories.add(catMap);
+            }
+            menus.put("menu-" + level, categories);
+        }
+        return menus;
+    }
+}
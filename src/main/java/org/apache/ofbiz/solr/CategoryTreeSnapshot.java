@@ -0,0 +1,214 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilDateTime;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.ServiceUtil;
+import org.apache.ofbiz.solr.indexing.ProductBatchLoader;
+
+/**
+ * Immutable snapshot of the whole product category rollup graph, with the trails and level/trail
+ * strings of every category precomputed.
+ * <p>
+ * The snapshot is built with a single query on <code>ProductCategoryRollup</code>, dropped when rollups change
+ * (see the <code>refreshSolrCategoryTree</code> ECA) and rebuilt on next use, or rebuilt when a rollup of the
+ * snapshot starts or ends being effective.
+ */
+public final class CategoryTreeSnapshot {
+
+    private static final String MODULE = CategoryTreeSnapshot.class.getName();
+    private static final Map<String, CategoryTreeSnapshot> SNAPSHOTS = new ConcurrentHashMap<>();
+
+    private final Map<String, List<String>> parentIdsByCategoryId;
+    private final Map<String, List<String>> childIdsByCategoryId;
+    private final Map<String, List<List<String>>> trailsByCategoryId;
+    private final Map<String, List<String>> trailMembersByCategoryId;
+    private final Timestamp validUntil;
+
+    private CategoryTreeSnapshot(Map<String, List<String>> parentIdsByCategoryId, Map<String, List<String>> childIdsByCategoryId,
+            Timestamp validUntil) {
+        Map<String, List<List<String>>> trails = new HashMap<>();
+        Map<String, List<String>> trailMembers = new HashMap<>();
+        Set<String> categoryIds = new LinkedHashSet<>(parentIdsByCategoryId.keySet());
+        categoryIds.addAll(childIdsByCategoryId.keySet());
+        for (String categoryId : categoryIds) {
+            List<List<String>> categoryTrails = new ArrayList<>();
+            for (List<String> trail : CategoryUtil.getCategoryTrail(categoryId, parentIdsByCategoryId)) {
+                categoryTrails.add(Collections.unmodifiableList(trail));
+            }
+            List<String> members = new ArrayList<>();
+            ProductBatchLoader.addTrailMembers(categoryTrails, members);
+            trails.put(categoryId, Collections.unmodifiableList(categoryTrails));
+            trailMembers.put(categoryId, Collections.unmodifiableList(members));
+        }
+        this.parentIdsByCategoryId = freeze(parentIdsByCategoryId);
+        this.childIdsByCategoryId = freeze(childIdsByCategoryId);
+        this.trailsByCategoryId = Collections.unmodifiableMap(trails);
+        this.trailMembersByCategoryId = Collections.unmodifiableMap(trailMembers);
+        this.validUntil = validUntil;
+    }
+
+    /**
+     * Returns the current snapshot of the delegator, building it if missing or outdated.
+     */
+    public static CategoryTreeSnapshot get(Delegator delegator) throws GenericEntityException {
+        CategoryTreeSnapshot snapshot = SNAPSHOTS.get(delegator.getDelegatorName());
+        if (snapshot == null || snapshot.isExpired()) {
+            snapshot = refresh(delegator);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Builds a new snapshot from the database and swaps it in.
+     */
+    public static CategoryTreeSnapshot refresh(Delegator delegator) throws GenericEntityException {
+        CategoryTreeSnapshot snapshot = build(delegator);
+        SNAPSHOTS.put(delegator.getDelegatorName(), snapshot);
+        return snapshot;
+    }
+
+    public static void invalidate(Delegator delegator) {
+        SNAPSHOTS.remove(delegator.getDelegatorName());
+    }
+
+    private static CategoryTreeSnapshot build(Delegator delegator) throws GenericEntityException {
+        long start = System.currentTimeMillis();
+        Timestamp now = UtilDateTime.nowTimestamp();
+        Timestamp validUntil = null;
+        Map<String, List<String>> parents = new HashMap<>();
+        Map<String, List<String>> children = new HashMap<>();
+        // the date filter is applied here, future from and thru dates bound the validity of the snapshot
+        List<GenericValue> rollups = EntityQuery.use(delegator).from("ProductCategoryRollup").orderBy("-fromDate").queryList();
+        for (GenericValue rollup : rollups) {
+            Timestamp fromDate = rollup.getTimestamp("fromDate");
+            Timestamp thruDate = rollup.getTimestamp("thruDate");
+            if (fromDate != null && fromDate.after(now)) {
+                validUntil = validUntil == null || fromDate.before(validUntil) ? fromDate : validUntil;
+                continue;
+            }
+            if (thruDate != null) {
+                if (!thruDate.after(now)) {
+                    continue;
+                }
+                validUntil = validUntil == null || thruDate.before(validUntil) ? thruDate : validUntil;
+            }
+            String categoryId = rollup.getString("productCategoryId");
+            String parentId = rollup.getString("parentProductCategoryId");
+            parents.computeIfAbsent(categoryId, k -> new ArrayList<>()).add(parentId);
+            children.computeIfAbsent(parentId, k -> new ArrayList<>()).add(categoryId);
+        }
+        CategoryTreeSnapshot snapshot = new CategoryTreeSnapshot(parents, children, validUntil);
+        Debug.logInfo("Solr: Built category tree snapshot of " + snapshot.trailsByCategoryId.size() + " categories in "
+                + (System.currentTimeMillis() - start) + " ms", MODULE);
+        return snapshot;
+    }
+
+    private static Map<String, List<String>> freeze(Map<String, List<String>> map) {
+        Map<String, List<String>> frozen = new HashMap<>();
+        for (Map.Entry<String, List<String>> entry : map.entrySet()) {
+            frozen.put(entry.getKey(), Collections.unmodifiableList(new ArrayList<>(entry.getValue())));
+        }
+        return Collections.unmodifiableMap(frozen);
+    }
+
+    private boolean isExpired() {
+        return validUntil != null && !validUntil.after(UtilDateTime.nowTimestamp());
+    }
+
+    /**
+     * Returns the trails from the top categories down to the category, same as
+     * {@link CategoryUtil#getCategoryTrail(String, DispatchContext)}.
+     */
+    public List<List<String>> getTrails(String productCategoryId) {
+        List<List<String>> trails = trailsByCategoryId.get(productCategoryId);
+        if (trails == null) {
+            trails = Collections.singletonList(Collections.singletonList(productCategoryId));
+        }
+        return trails;
+    }
+
+    /**
+     * Returns the level/trail strings of the category and all its ancestors, ie "0/TOP", "1/TOP/CHILD".
+     */
+    public List<String> getTrailMembers(String productCategoryId) {
+        List<String> members = trailMembersByCategoryId.get(productCategoryId);
+        if (members == null) {
+            members = Collections.singletonList("0/" + productCategoryId);
+        }
+        return members;
+    }
+
+    public List<String> getParentIds(String productCategoryId) {
+        return parentIdsByCategoryId.getOrDefault(productCategoryId, Collections.emptyList());
+    }
+
+    public List<String> getChildIds(String productCategoryId) {
+        return childIdsByCategoryId.getOrDefault(productCategoryId, Collections.emptyList());
+    }
+
+    /**
+     * Returns the category and all categories below it.
+     */
+    public Set<String> getDescendantIds(String productCategoryId) {
+        Set<String> descendants = new LinkedHashSet<>();
+        List<String> pending = new ArrayList<>();
+        pending.add(productCategoryId);
+        while (!pending.isEmpty()) {
+            String categoryId = pending.remove(pending.size() - 1);
+            if (descendants.add(categoryId)) {
+                pending.addAll(getChildIds(categoryId));
+            }
+        }
+        return descendants;
+    }
+
+    /**
+     * Drops the snapshot now and again once the transaction changing a rollup is over, the next {@link #get} rebuilds it
+     * - intended for use with ECAs.
+     */
+    public static Map<String, Object> refreshCategoryTree(DispatchContext dctx, Map<String, Object> context) {
+        Delegator delegator = dctx.getDelegator();
+        invalidate(delegator);
+        try {
+            // a snapshot built concurrently before the commit may miss the change
+            SolrUtil.afterTransaction(() -> invalidate(delegator));
+        } catch (GenericEntityException e) {
+            Debug.logError(e, e.getMessage(), MODULE);
+            return ServiceUtil.returnError(e.toString());
+        }
+        return ServiceUtil.returnSuccess();
+    }
+}
@@ -19,8 +19,12 @@
 package org.apache.ofbiz.solr;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.ofbiz.base.util.Debug;
@@ -44,28 +48,45 @@ public final class CategoryUtil {
     private CategoryUtil() { }
 
     /**
-     * Gets catalog IDs for specified product category.
+     * Gets catalog IDs for specified product category, read from the {@link CatalogMembershipIndex}.
      * <p>
      * This method is a supplement to CatalogWorker methods.
      */
     public static List<String> getCatalogIdsByCategoryId(Delegator delegator, String productCategoryId) {
-        List<String> catalogIds = new ArrayList<>();
-        List<GenericValue> catalogs = null;
         try {
-            EntityCondition condition = EntityCondition.makeCondition(UtilMisc.toMap("productCategoryId", productCategoryId));
-            // catalogs = delegator.findList("ProdCatalog", null, null, UtilMisc.toList("catalogName"), null, false);
-            catalogs = delegator.findList("ProdCatalogCategory", condition, null, null, null, false);
+            return new ArrayList<>(CatalogMembershipIndex.get(delegator).getCatalogIds(productCategoryId));
         } catch (GenericEntityException e) {
             Debug.logError(e, "Error looking up all catalogs", MODULE);
         }
-        if (catalogs != null) {
-            for (GenericValue c : catalogs) {
-                catalogIds.add(c.getString("prodCatalogId"));
-            }
+        return new ArrayList<>();
+    }
+
+    /**
+     * Gets the category IDs of a catalog ordered by sequence, optionally of one prodCatalogCategoryTypeId only,
+     * ie PCCT_BROWSE_ROOT for storefront navigation.
+     */
+    public static List<String> getCategoryIdsByCatalogId(Delegator delegator, String prodCatalogId, String prodCatalogCategoryTypeId) {
+        try {
+            return CatalogMembershipIndex.get(delegator).getCategoryIds(prodCatalogId, prodCatalogCategoryTypeId);
+        } catch (GenericEntityException e) {
+            Debug.logError(e, "Error looking up the categories of catalog " + prodCatalogId, MODULE);
         }
-        return catalogIds;
+        return new ArrayList<>();
     }
+
+    /**
+     * Gets the trails from the top categories down to the category, read from the {@link CategoryTreeSnapshot}.
+     */
     public static List<List<String>> getCategoryTrail(String productCategoryId, DispatchContext dctx) {
+        try {
+            return CategoryTreeSnapshot.get(dctx.getDelegator()).getTrails(productCategoryId);
+        } catch (GenericEntityException e) {
+            Debug.logError(e, "Cannot load the category tree snapshot, walking the rollups instead", MODULE);
+        }
+        return getCategoryTrailFromRollups(productCategoryId, dctx);
+    }
+
+    private static List<List<String>> getCategoryTrailFromRollups(String productCategoryId, DispatchContext dctx) {
         GenericDelegator delegator = (GenericDelegator) dctx.getDelegator();
         List<List<String>> trailElements = new ArrayList<>();
         String parentProductCategoryId = productCategoryId;
@@ -114,6 +135,65 @@ public final class CategoryUtil {
         return trailElements;
     }
 
+    /**
+     * Returns the category IDs of level/trail strings, ie "TOP" and "CHILD" for "1/TOP/CHILD".
+     */
+    public static List<String> getCategoryIdsFromTrails(List<String> trailMembers) {
+        Set<String> categoryIds = new LinkedHashSet<>();
+        for (String trailMember : trailMembers) {
+            String[] elements = trailMember.split("/");
+            for (int i = 1; i < elements.length; i++) {
+                if (UtilValidate.isNotEmpty(elements[i])) {
+                    categoryIds.add(elements[i]);
+                }
+            }
+        }
+        return new ArrayList<>(categoryIds);
+    }
+
+    /**
+     * Gets the category trails from already loaded rollups, parent category IDs keyed by category ID.
+     * <p>
+     * Follows the same walk as {@link #getCategoryTrail(String, DispatchContext)} without any database access.
+     */
+    public static List<List<String>> getCategoryTrail(String productCategoryId, Map<String, List<String>> parentIdsByCategoryId) {
+        List<List<String>> trailElements = new ArrayList<>();
+        Set<String> visitedCategoryIds = new HashSet<>();
+        String parentProductCategoryId = productCategoryId;
+        while (UtilValidate.isNotEmpty(parentProductCategoryId) && visitedCategoryIds.add(parentProductCategoryId)) {
+            List<String> parentIds = parentIdsByCategoryId.get(parentProductCategoryId);
+            if (UtilValidate.isNotEmpty(parentIds)) {
+                List<List<String>> trailElementsAux = new ArrayList<>();
+                trailElementsAux.addAll(trailElements);
+                // add only categories that belong to the top category to trail
+                for (String trailCategoryId : parentIds) {
+                    parentProductCategoryId = trailCategoryId;
+                    List<String> trailElement = new ArrayList<>();
+                    if (!trailElements.isEmpty()) {
+                        for (List<String> trailList : trailElementsAux) {
+                            trailElement.add(trailCategoryId);
+                            trailElement.addAll(trailList);
+                            trailElements.remove(trailList);
+                            trailElements.add(trailElement);
+                        }
+                    } else {
+                        trailElement.add(trailCategoryId);
+                        trailElement.add(productCategoryId);
+                        trailElements.add(trailElement);
+                    }
+                }
+            } else {
+                parentProductCategoryId = null;
+            }
+        }
+        if (trailElements.isEmpty()) {
+            List<String> trailElement = new ArrayList<>();
+            trailElement.add(productCategoryId);
+            trailElements.add(trailElement);
+        }
+        return trailElements;
+    }
+
     /**
      * Returns categoryName with trail
      */
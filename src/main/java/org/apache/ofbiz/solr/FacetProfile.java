@@ -0,0 +1,275 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.StringUtil;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.response.json.BucketBasedJsonFacet;
+import org.apache.solr.client.solrj.response.json.BucketJsonFacet;
+import org.apache.solr.client.solrj.response.json.NestableJsonFacet;
+
+/**
+ * Named set of facets run as a single JSON facet request, defined in <code>solrconfig.properties</code>:
+ * <ul>
+ * <li><code>solr.facet.profile.[name].fields</code>: terms facet fields, with <code>.limit</code> and <code>.mincount</code></li>
+ * <li><code>solr.facet.profile.[name].ranges</code>: range facet fields, each with either
+ * <code>.range.[field].bounds</code>, the edges of the buckets, or <code>.range.[field].start/end/gap</code></li>
+ * </ul>
+ * The filter query and label of every range bucket are computed when the profile is loaded, so reading the
+ * response only looks buckets up.
+ */
+public final class FacetProfile {
+
+    private static final String MODULE = FacetProfile.class.getName();
+    public static final String DEFAULT_PROFILE = "default";
+    private static final String RANGE_PREFIX = "range_";
+    private static final Map<String, FacetProfile> PROFILES = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final List<String> fields;
+    private final int limit;
+    private final int minCount;
+    /** Buckets of each range field keyed by their normalized value in the response. */
+    private final Map<String, Map<String, RangeBucket>> rangeBuckets;
+    private final String jsonFacet;
+
+    private FacetProfile(String name, List<String> fields, int limit, int minCount, Map<String, Map<String, RangeBucket>> rangeBuckets,
+            String jsonFacet) {
+        this.name = name;
+        this.fields = Collections.unmodifiableList(fields);
+        this.limit = limit;
+        this.minCount = minCount;
+        this.rangeBuckets = Collections.unmodifiableMap(rangeBuckets);
+        this.jsonFacet = jsonFacet;
+    }
+
+    /**
+     * Returns the profile of this name, or the default profile when it is not configured.
+     */
+    public static FacetProfile get(String name) {
+        String profileName = UtilValidate.isNotEmpty(name) ? name : DEFAULT_PROFILE;
+        FacetProfile profile = PROFILES.get(profileName);
+        if (profile == null) {
+            profile = load(profileName, UtilProperties.getProperties(SolrUtil.SOLR_CONFIG_NAME));
+            if (profile == null) {
+                Debug.logWarning("Solr: Unknown facet profile " + profileName + ", using " + DEFAULT_PROFILE, MODULE);
+                profile = DEFAULT_PROFILE.equals(profileName) ? new FacetProfile(DEFAULT_PROFILE, new ArrayList<>(), 8, 1,
+                        new LinkedHashMap<>(), null) : get(DEFAULT_PROFILE);
+            }
+            // the fallback is kept under the unknown name too, so it is only looked up and logged once
+            FacetProfile current = PROFILES.putIfAbsent(profileName, profile);
+            if (current != null) {
+                profile = current;
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * Builds the profile of this name from the <code>solr.facet.profile.[name]</code> properties, or returns null when
+     * the properties define no facets for it.
+     */
+    public static FacetProfile load(String name, Properties properties) {
+        String prefix = "solr.facet.profile." + name + ".";
+        String fieldNames = getProperty(properties, prefix + "fields", null);
+        String rangeNames = getProperty(properties, prefix + "ranges", null);
+        if (UtilValidate.isEmpty(fieldNames) && UtilValidate.isEmpty(rangeNames)) {
+            return null;
+        }
+        int limit = getIntProperty(properties, prefix + "limit", 8);
+        int minCount = getIntProperty(properties, prefix + "mincount", 1);
+        List<String> fields = split(fieldNames);
+        List<String> facets = new ArrayList<>();
+        for (String field : fields) {
+            facets.add(field + ":{type:terms,field:" + field + ",limit:" + limit + ",mincount:" + minCount + "}");
+        }
+
+        Map<String, Map<String, RangeBucket>> rangeBuckets = new LinkedHashMap<>();
+        for (String field : split(rangeNames)) {
+            String rangePrefix = prefix + "range." + field + ".";
+            List<BigDecimal> bounds = new ArrayList<>();
+            for (String bound : split(getProperty(properties, rangePrefix + "bounds", null))) {
+                bounds.add(new BigDecimal(bound));
+            }
+            Map<String, RangeBucket> buckets = new LinkedHashMap<>();
+            if (!bounds.isEmpty()) {
+                // explicit edges, the last bucket is open ended; bounds are inclusive like the former facet queries
+                List<String> ranges = new ArrayList<>();
+                for (int i = 0; i < bounds.size(); i++) {
+                    String from = bounds.get(i).toPlainString();
+                    String to = i + 1 < bounds.size() ? bounds.get(i + 1).toPlainString() : "*";
+                    String range = "[" + from + "," + to + "]";
+                    ranges.add("{range:\"" + range + "\"}");
+                    buckets.put(range, new RangeBucket(field + ":[" + from + " TO " + to + "]", from + " TO " + to));
+                }
+                facets.add(RANGE_PREFIX + field + ":{type:range,field:" + field + ",ranges:[" + String.join(",", ranges) + "]}");
+            } else {
+                BigDecimal start = new BigDecimal(getProperty(properties, rangePrefix + "start", "0"));
+                BigDecimal end = new BigDecimal(getProperty(properties, rangePrefix + "end", "0"));
+                BigDecimal gap = new BigDecimal(getProperty(properties, rangePrefix + "gap", "0"));
+                if (gap.signum() <= 0 || end.compareTo(start) <= 0) {
+                    Debug.logWarning("Solr: Range facet " + field + " of profile " + name + " needs bounds or start < end and gap > 0", MODULE);
+                    continue;
+                }
+                for (BigDecimal from = start; from.compareTo(end) < 0; from = from.add(gap)) {
+                    String to = from.add(gap).min(end).toPlainString();
+                    buckets.put(normalize(from), new RangeBucket(field + ":[" + from.toPlainString() + " TO " + to + "}",
+                            from.toPlainString() + " TO " + to));
+                }
+                facets.add(RANGE_PREFIX + field + ":{type:range,field:" + field + ",start:" + start.toPlainString() + ",end:"
+                        + end.toPlainString() + ",gap:" + gap.toPlainString() + ",hardend:true}");
+            }
+            rangeBuckets.put(field, buckets);
+        }
+        Debug.logInfo("Solr: Loaded facet profile " + name + " with fields " + fields + " and ranges " + rangeBuckets.keySet(), MODULE);
+        return new FacetProfile(name, fields, limit, minCount, rangeBuckets, "{" + String.join(",", facets) + "}");
+    }
+
+    private static String getProperty(Properties properties, String name, String defaultValue) {
+        String value = properties != null ? properties.getProperty(name) : null;
+        return UtilValidate.isNotEmpty(value) ? value.trim() : defaultValue;
+    }
+
+    private static int getIntProperty(Properties properties, String name, int defaultValue) {
+        String value = getProperty(properties, name, null);
+        try {
+            return value != null ? Integer.parseInt(value) : defaultValue;
+        } catch (NumberFormatException e) {
+            Debug.logWarning("Solr: Invalid number " + value + " for " + name + ", using " + defaultValue, MODULE);
+            return defaultValue;
+        }
+    }
+
+    private static List<String> split(String values) {
+        List<String> result = new ArrayList<>();
+        if (UtilValidate.isNotEmpty(values)) {
+            for (String value : StringUtil.split(values, ",")) {
+                if (UtilValidate.isNotEmpty(value.trim())) {
+                    result.add(value.trim());
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String normalize(Object value) {
+        try {
+            return new BigDecimal(value.toString()).stripTrailingZeros().toPlainString();
+        } catch (NumberFormatException e) {
+            return value.toString();
+        }
+    }
+
+    public static void clear() {
+        PROFILES.clear();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getMinCount() {
+        return minCount;
+    }
+
+    /**
+     * Adds the facets of the profile to the query.
+     */
+    public void apply(SolrQuery solrQuery) {
+        if (jsonFacet != null) {
+            solrQuery.set("json.facet", jsonFacet);
+        }
+    }
+
+    /**
+     * Returns the counts of the terms facets, keyed by field and term.
+     */
+    public Map<String, Map<String, Long>> getFieldCounts(QueryResponse response) {
+        Map<String, Map<String, Long>> facetFields = new HashMap<>();
+        NestableJsonFacet facets = response.getJsonFacetingResponse();
+        if (facets == null) {
+            return facetFields;
+        }
+        for (String field : fields) {
+            BucketBasedJsonFacet facet = facets.getBucketBasedFacets(field);
+            if (facet != null && UtilValidate.isNotEmpty(facet.getBuckets())) {
+                Map<String, Long> facetEntry = new LinkedHashMap<>();
+                for (BucketJsonFacet bucket : facet.getBuckets()) {
+                    facetEntry.put(bucket.getVal().toString(), bucket.getCount());
+                }
+                facetFields.put(field, facetEntry);
+            }
+        }
+        return facetFields;
+    }
+
+    /**
+     * Returns the non-empty range buckets as "[label] ([count])" keyed by the filter query selecting the bucket,
+     * the layout of the <code>facetQueries</code> of the keyword search.
+     */
+    public Map<String, String> getRangeCounts(QueryResponse response) {
+        Map<String, String> facetQueries = new LinkedHashMap<>();
+        NestableJsonFacet facets = response.getJsonFacetingResponse();
+        if (facets == null) {
+            return facetQueries;
+        }
+        for (Map.Entry<String, Map<String, RangeBucket>> entry : rangeBuckets.entrySet()) {
+            BucketBasedJsonFacet facet = facets.getBucketBasedFacets(RANGE_PREFIX + entry.getKey());
+            if (facet == null) {
+                continue;
+            }
+            for (BucketJsonFacet bucket : facet.getBuckets()) {
+                Object value = bucket.getVal();
+                RangeBucket rangeBucket = entry.getValue().get(value instanceof String ? (String) value : normalize(value));
+                if (rangeBucket != null && bucket.getCount() > 0) {
+                    facetQueries.put(rangeBucket.filterQuery, rangeBucket.label + " (" + bucket.getCount() + ")");
+                }
+            }
+        }
+        return facetQueries;
+    }
+
+    private static final class RangeBucket {
+        private final String filterQuery;
+        private final String label;
+
+        private RangeBucket(String filterQuery, String label) {
+            this.filterQuery = filterQuery;
+            this.label = label;
+        }
+    }
+}
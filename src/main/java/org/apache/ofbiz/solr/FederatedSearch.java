@@ -0,0 +1,256 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.StringUtil;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.ServiceUtil;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest.METHOD;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+
+/**
+ * Searches several indexes at once with client-side scatter/gather.
+ * <p>
+ * Each index is asked for the first <code>viewIndex + viewSize</code> hits in parallel, the hits are merged by score
+ * (ties broken by the order of the indexes, then by productId) and the requested page is cut from the merged list,
+ * so pages stay consistent whatever the number of indexes. Facet counts are summed across indexes. Every returned
+ * document carries the name of its index in <code>indexName</code>.
+ * <p>
+ * The requests to the indexes run on an executor of their own, <code>solr.federated.threads</code> threads: a
+ * federated search run through {@link AsyncSearch} would otherwise wait for tasks queued behind it on the same pool.
+ */
+public final class FederatedSearch {
+
+    private static final String MODULE = FederatedSearch.class.getName();
+    private static final String DEFAULT_INDEXES = "solrdefault,pies";
+    private static final ExecutorService EXECUTOR = createExecutor();
+
+    private FederatedSearch() { }
+
+    private static ExecutorService createExecutor() {
+        int threads = UtilProperties.getPropertyAsInteger(SolrUtil.SOLR_CONFIG_NAME, "solr.federated.threads", 8);
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "solr-federated-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns the indexes searched when the caller does not name any, <code>solr.federated.indexes</code>.
+     */
+    public static List<String> getDefaultIndexNames() {
+        return split(UtilProperties.getPropertyValue(SolrUtil.SOLR_CONFIG_NAME, "solr.federated.indexes", DEFAULT_INDEXES));
+    }
+
+    private static List<String> split(String values) {
+        List<String> result = new ArrayList<>();
+        if (UtilValidate.isNotEmpty(values)) {
+            for (String value : StringUtil.split(values, ",")) {
+                if (UtilValidate.isNotEmpty(value.trim()) && !result.contains(value.trim())) {
+                    result.add(value.trim());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Runs the query on several indexes in parallel and returns one merged page of results.
+     */
+    public static Map<String, Object> federatedSearch(DispatchContext dctx, Map<String, Object> context) {
+        List<String> indexNames = UtilValidate.isNotEmpty(context.get("indexNames"))
+                ? split((String) context.get("indexNames")) : getDefaultIndexNames();
+        int viewIndex = context.get("viewIndex") != null ? Math.max(0, (Integer) context.get("viewIndex")) : 0;
+        int viewSize = context.get("viewSize") != null ? Math.max(0, (Integer) context.get("viewSize")) : 20;
+        int maxWindow = UtilProperties.getPropertyAsInteger(SolrUtil.SOLR_CONFIG_NAME, "solr.federated.max.window", 10000);
+        if (viewIndex + viewSize > maxWindow) {
+            return ServiceUtil.returnError("Federated searches cannot page beyond " + maxWindow + " results");
+        }
+        List<String> facetFields = split((String) context.get("facetFields"));
+        int facetLimit = context.get("facetLimit") != null ? (Integer) context.get("facetLimit") : 8;
+        SolrQuery solrQuery = makeQuery(context, viewIndex + viewSize, facetFields, facetLimit);
+        long timeout = UtilProperties.getPropertyAsLong(SolrUtil.SOLR_CONFIG_NAME, "solr.search.async.timeout", 10000);
+
+        // scatter
+        Map<String, CompletableFuture<QueryResponse>> futures = new LinkedHashMap<>();
+        for (String indexName : indexNames) {
+            futures.put(indexName, CompletableFuture.supplyAsync(() -> {
+                try {
+                    return query(indexName, solrQuery);
+                } catch (SolrServerException | IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, EXECUTOR));
+        }
+
+        // gather
+        long deadline = System.currentTimeMillis() + timeout;
+        List<ScoredDocument> hits = new ArrayList<>();
+        Map<String, Map<String, Long>> facetCounts = new LinkedHashMap<>();
+        List<String> failedIndexNames = new ArrayList<>();
+        long numFound = 0;
+        int indexOrder = 0;
+        for (Map.Entry<String, CompletableFuture<QueryResponse>> entry : futures.entrySet()) {
+            String indexName = entry.getKey();
+            QueryResponse response;
+            try {
+                response = entry.getValue().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                entry.getValue().cancel(true);
+                Debug.logWarning(e, "Solr: Index " + indexName + " left out of the federated search", MODULE);
+                failedIndexNames.add(indexName);
+                continue;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return ServiceUtil.returnError("Federated search interrupted");
+            }
+            numFound += response.getResults().getNumFound();
+            for (SolrDocument document : response.getResults()) {
+                document.setField("indexName", indexName);
+                hits.add(new ScoredDocument(document, indexOrder));
+            }
+            if (response.getFacetFields() != null) {
+                for (FacetField facetField : response.getFacetFields()) {
+                    Map<String, Long> counts = facetCounts.computeIfAbsent(facetField.getName(), k -> new HashMap<>());
+                    for (FacetField.Count count : facetField.getValues()) {
+                        counts.merge(count.getName(), count.getCount(), Long::sum);
+                    }
+                }
+            }
+            indexOrder++;
+        }
+        if (!indexNames.isEmpty() && failedIndexNames.size() == indexNames.size()) {
+            return ServiceUtil.returnError("Federated search failed on all indexes " + indexNames);
+        }
+
+        hits.sort(Comparator.comparingDouble(ScoredDocument::getScore).reversed()
+                .thenComparingInt(ScoredDocument::getIndexOrder).thenComparing(ScoredDocument::getProductId));
+        SolrDocumentList results = new SolrDocumentList();
+        results.setNumFound(numFound);
+        results.setStart(viewIndex);
+        for (int i = viewIndex; i < Math.min(hits.size(), viewIndex + viewSize); i++) {
+            results.add(hits.get(i).document);
+        }
+
+        Map<String, Object> result = ServiceUtil.returnSuccess();
+        result.put("results", results);
+        result.put("listSize", numFound);
+        result.put("viewIndex", viewIndex);
+        result.put("viewSize", results.size());
+        result.put("facetFields", topCounts(facetCounts, facetLimit));
+        result.put("failedIndexNames", failedIndexNames);
+        return result;
+    }
+
+    private static SolrQuery makeQuery(Map<String, Object> context, int rows, List<String> facetFields, int facetLimit) {
+        SolrQuery solrQuery = new SolrQuery(UtilValidate.isNotEmpty(context.get("query")) ? (String) context.get("query") : "*:*");
+        String queryFilter = (String) context.get("queryFilter");
+        if (UtilValidate.isNotEmpty(queryFilter)) {
+            solrQuery.setFilterQueries(queryFilter.split(" "));
+        }
+        String fieldProfile = (String) context.get("fieldProfile");
+        solrQuery.setFields((UtilValidate.isNotEmpty(fieldProfile) ? SolrUtil.getProfileFields(fieldProfile) : "*") + ",score");
+        solrQuery.setStart(0);
+        solrQuery.setRows(rows);
+        if (!facetFields.isEmpty()) {
+            solrQuery.setFacet(true);
+            solrQuery.addFacetField(facetFields.toArray(new String[0]));
+            solrQuery.setFacetMinCount(1);
+            // a term below the limit of every index can still make the merged top list, ask for some more
+            solrQuery.setFacetLimit(facetLimit < 0 ? -1 : facetLimit * 2 + 10);
+        }
+        return solrQuery;
+    }
+
+    private static QueryResponse query(String indexName, SolrQuery solrQuery) throws SolrServerException, IOException {
+        HttpSolrClient client = null;
+        try {
+            client = SolrUtil.getHttpSolrClient(indexName);
+            return client.query(solrQuery, METHOD.POST);
+        } finally {
+            if (client != null) {
+                client.close();
+            }
+        }
+    }
+
+    private static Map<String, Map<String, Long>> topCounts(Map<String, Map<String, Long>> facetCounts, int facetLimit) {
+        Map<String, Map<String, Long>> facetFields = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<String, Long>> entry : facetCounts.entrySet()) {
+            Map<String, Long> counts = new LinkedHashMap<>();
+            entry.getValue().entrySet().stream()
+                    .sorted(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+                    .limit(facetLimit < 0 ? Long.MAX_VALUE : facetLimit)
+                    .forEach(count -> counts.put(count.getKey(), count.getValue()));
+            facetFields.put(entry.getKey(), counts);
+        }
+        return facetFields;
+    }
+
+    private static final class ScoredDocument {
+        private final SolrDocument document;
+        private final int indexOrder;
+
+        private ScoredDocument(SolrDocument document, int indexOrder) {
+            this.document = document;
+            this.indexOrder = indexOrder;
+        }
+
+        private double getScore() {
+            Object score = document.getFieldValue("score");
+            return score instanceof Number ? ((Number) score).doubleValue() : 0;
+        }
+
+        private int getIndexOrder() {
+            return indexOrder;
+        }
+
+        private String getProductId() {
+            Object productId = document.getFieldValue("productId");
+            return productId != null ? productId.toString() : "";
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr;
+
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilGenerics;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.ServiceUtil;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest.METHOD;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.response.QueryResponse;
+
+/**
+ * Block join queries on the PIES items indexed by {@link org.apache.ofbiz.solr.indexing.XmlParsing}.
+ * <p>
+ * Items have docType product and carry their descriptions, attributes, packages, prices, digital assets and
+ * interchanges as nested child documents whose kind is in <code>childType</code>. The parent filter of every query
+ * is the constant {@link #PARENT_FILTER}, so its bit set is computed once per searcher, and the child type is an
+ * exact term, so the filters on it are cached as well.
+ */
+public final class PiesBlockJoin {
+
+    private static final String MODULE = PiesBlockJoin.class.getName();
+    public static final String PARENT_FILTER = "docType:" + SolrUtil.DOC_TYPE_PRODUCT;
+    public static final String CHILD_DESCRIPTION = "description";
+    public static final String CHILD_EXTENDED_INFORMATION = "extendedInformation";
+    public static final String CHILD_PRODUCT_ATTRIBUTE = "productAttribute";
+    public static final String CHILD_PACKAGE = "package";
+    public static final String CHILD_PRICE = "price";
+    public static final String CHILD_DIGITAL_ASSET = "digitalAsset";
+    public static final String CHILD_PART_INTERCHANGE = "partInterchange";
+    private static final Set<String> CHILD_TYPES = UtilMisc.toSet(CHILD_DESCRIPTION, CHILD_EXTENDED_INFORMATION, CHILD_PRODUCT_ATTRIBUTE,
+            CHILD_PACKAGE, CHILD_PRICE, CHILD_DIGITAL_ASSET, CHILD_PART_INTERCHANGE);
+
+    private PiesBlockJoin() { }
+
+    /**
+     * Returns the query matching the children of this type, restricted by the child query when there is one.
+     */
+    private static String childMatch(String childType, String childQuery) {
+        return UtilValidate.isNotEmpty(childQuery) ? "+childType:" + childType + " +(" + childQuery + ")" : "childType:" + childType;
+    }
+
+    /**
+     * Returns the items having at least one child of the type matching the child query, ie prices of type JBR below
+     * some value, with either their matching children or all their children of that type attached.
+     */
+    public static Map<String, Object> itemsByChild(DispatchContext dctx, Map<String, Object> context) {
+        String indexName = (String) context.get("indexName");
+        String childType = (String) context.get("childType");
+        if (!CHILD_TYPES.contains(childType)) {
+            return ServiceUtil.returnError("Unknown child type " + childType + ", expected one of " + CHILD_TYPES);
+        }
+        String childMatch = childMatch(childType, (String) context.get("childQuery"));
+        SolrQuery solrQuery = new SolrQuery(UtilValidate.isNotEmpty(context.get("query")) ? (String) context.get("query") : "*:*");
+        solrQuery.set("parentFilter", PARENT_FILTER);
+        solrQuery.set("childMatch", childMatch);
+        solrQuery.addFilterQuery("{!parent which=$parentFilter v=$childMatch}");
+        try {
+            SolrUtil.addRangeFilters(solrQuery, UtilGenerics.cast(context.get("rangeFilters")));
+        } catch (IllegalArgumentException e) {
+            return ServiceUtil.returnError(e.getMessage());
+        }
+
+        String fields = UtilValidate.isNotEmpty(context.get("returnFields")) ? (String) context.get("returnFields") : "*";
+        if (!Boolean.FALSE.equals(context.get("returnChildren"))) {
+            solrQuery.set("childFilter", Boolean.FALSE.equals(context.get("matchingChildrenOnly")) ? childMatch(childType, null) : childMatch);
+            String childFields = (String) context.get("childFields");
+            fields += ",[child parentFilter=$parentFilter childFilter=$childFilter limit=" + getChildLimit()
+                    + (UtilValidate.isNotEmpty(childFields) ? " fl=" + childFields.replace(" ", "") : "") + "]";
+        }
+        solrQuery.setFields(fields);
+        return query(indexName, solrQuery, context);
+    }
+
+    /**
+     * Returns the children of the type of the items matching the query, optionally restricted by the child query,
+     * ie the attributes of the items of a brand. Each child names its item in parentProductId.
+     */
+    public static Map<String, Object> childrenOfItems(DispatchContext dctx, Map<String, Object> context) {
+        String indexName = (String) context.get("indexName");
+        String childType = (String) context.get("childType");
+        if (!CHILD_TYPES.contains(childType)) {
+            return ServiceUtil.returnError("Unknown child type " + childType + ", expected one of " + CHILD_TYPES);
+        }
+        String query = UtilValidate.isNotEmpty(context.get("query")) ? (String) context.get("query") : "*:*";
+        SolrQuery solrQuery = new SolrQuery("{!child of=$parentFilter v=$parentMatch}");
+        solrQuery.set("parentFilter", PARENT_FILTER);
+        solrQuery.set("parentMatch", "+" + PARENT_FILTER + " +(" + query + ")");
+        solrQuery.addFilterQuery("{!term f=childType}" + childType);
+        if (UtilValidate.isNotEmpty(context.get("childQuery"))) {
+            solrQuery.addFilterQuery((String) context.get("childQuery"));
+        }
+        if (UtilValidate.isNotEmpty(context.get("returnFields"))) {
+            solrQuery.setFields((String) context.get("returnFields"));
+        }
+        return query(indexName, solrQuery, context);
+    }
+
+    private static int getChildLimit() {
+        return UtilProperties.getPropertyAsInteger(SolrUtil.SOLR_CONFIG_NAME, "solr.query.pies.child.limit", 100);
+    }
+
+    private static Map<String, Object> query(String indexName, SolrQuery solrQuery, Map<String, Object> context) {
+        int viewIndex = context.get("viewIndex") != null ? Math.max(0, (Integer) context.get("viewIndex")) : 0;
+        int viewSize = context.get("viewSize") != null ? Math.max(0, (Integer) context.get("viewSize")) : 20;
+        solrQuery.setStart(viewIndex);
+        solrQuery.setRows(viewSize);
+        String sortBy = (String) context.get("sortBy");
+        if (UtilValidate.isNotEmpty(sortBy)) {
+            solrQuery.setSort(sortBy, Boolean.TRUE.equals(context.get("sortByReverse")) ? SolrQuery.ORDER.desc : SolrQuery.ORDER.asc);
+        }
+        HttpSolrClient client = null;
+        try {
+            client = SolrUtil.getHttpSolrClient(indexName);
+            QueryResponse response = client.query(solrQuery, METHOD.POST);
+            Map<String, Object> result = ServiceUtil.returnSuccess();
+            result.put("results", response.getResults());
+            result.put("listSize", response.getResults().getNumFound());
+            result.put("viewIndex", viewIndex);
+            result.put("viewSize", response.getResults().size());
+            return result;
+        } catch (Exception e) {
+            Debug.logError(e, "Solr: Block join query " + solrQuery + " failed on index " + indexName, MODULE);
+            return ServiceUtil.returnError(e.toString());
+        } finally {
+            if (client != null) {
+                try {
+                    client.close();
+                } catch (Exception e) {
+                    Debug.logError(e, MODULE);
+                }
+            }
+        }
+    }
+}
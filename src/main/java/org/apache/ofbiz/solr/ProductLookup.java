@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilGenerics;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.ServiceUtil;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+
+/**
+ * Lookups of products by id through the real-time get handler of the cores.
+ * <p>
+ * <code>/get</code> reads the documents by their unique key, productId, which is also the part number of the PIES
+ * items: no query parsing, no scoring and no new searcher, and updates not committed yet are seen. GTINs are first
+ * resolved to productIds with an exact match on the GTIN field of the index, <code>solr.lookup.gtin.field</code>,
+ * then read the same way.
+ */
+public final class ProductLookup {
+
+    private static final String MODULE = ProductLookup.class.getName();
+
+    private ProductLookup() { }
+
+    /**
+     * Returns the documents of the products with these productIds and GTINs, keyed by the id they were asked by
+     * in the order they were asked; ids without a document are returned in missingIds.
+     */
+    public static Map<String, Object> lookupProducts(DispatchContext dctx, Map<String, Object> context) {
+        String indexName = (String) context.get("indexName");
+        Set<String> productIds = toSet(UtilGenerics.cast(context.get("productIds")));
+        Set<String> gtins = toSet(UtilGenerics.cast(context.get("gtins")));
+        int maxIds = UtilProperties.getPropertyAsInteger(SolrUtil.SOLR_CONFIG_NAME, "solr.lookup.max.ids", 500);
+        if (productIds.size() + gtins.size() > maxIds) {
+            return ServiceUtil.returnError("Cannot look up more than " + maxIds + " products at once");
+        }
+        String gtinField = SolrUtil.getGtinField(indexName);
+        if (!gtins.isEmpty() && gtinField == null) {
+            return ServiceUtil.returnError("Index " + indexName + " has no GTIN field to look products up by");
+        }
+        String fields = UtilValidate.isNotEmpty(context.get("returnFields")) ? (String) context.get("returnFields")
+                : SolrUtil.getProfileFields(UtilValidate.isNotEmpty(context.get("fieldProfile")) ? (String) context.get("fieldProfile") : "detail");
+
+        Map<String, SolrDocument> products = new LinkedHashMap<>();
+        Map<String, SolrDocument> productsByGtin = new LinkedHashMap<>();
+        HttpSolrClient client = null;
+        try {
+            client = SolrUtil.getHttpSolrClient(indexName);
+            Map<String, String> gtinProductIds = gtins.isEmpty() ? new LinkedHashMap<>() : resolveGtins(client, gtinField, gtins);
+            Set<String> ids = new LinkedHashSet<>(productIds);
+            ids.addAll(gtinProductIds.values());
+            if (!ids.isEmpty()) {
+                ModifiableSolrParams params = new ModifiableSolrParams();
+                // the documents are keyed by productId, whatever the projection
+                params.set(CommonParams.FL, "*".equals(fields) ? fields : fields + ",productId");
+                for (SolrDocument document : client.getById(ids, params)) {
+                    products.put((String) document.getFieldValue("productId"), document);
+                }
+            }
+            for (Map.Entry<String, String> entry : gtinProductIds.entrySet()) {
+                if (products.containsKey(entry.getValue())) {
+                    productsByGtin.put(entry.getKey(), products.get(entry.getValue()));
+                }
+            }
+            products.keySet().retainAll(productIds);
+        } catch (SolrServerException | IOException e) {
+            Debug.logError(e, "Solr: Cannot look up products " + productIds + " and GTINs " + gtins + " in index " + indexName, MODULE);
+            return ServiceUtil.returnError(e.toString());
+        } finally {
+            if (client != null) {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    Debug.logError(e, MODULE);
+                }
+            }
+        }
+
+        List<String> missingIds = new ArrayList<>();
+        Map<String, SolrDocument> orderedProducts = new LinkedHashMap<>();
+        for (String productId : productIds) {
+            if (products.containsKey(productId)) {
+                orderedProducts.put(productId, products.get(productId));
+            } else {
+                missingIds.add(productId);
+            }
+        }
+        Map<String, SolrDocument> orderedProductsByGtin = new LinkedHashMap<>();
+        for (String gtin : gtins) {
+            if (productsByGtin.containsKey(gtin)) {
+                orderedProductsByGtin.put(gtin, productsByGtin.get(gtin));
+            } else {
+                missingIds.add(gtin);
+            }
+        }
+        Map<String, Object> result = ServiceUtil.returnSuccess();
+        result.put("products", orderedProducts);
+        result.put("productsByGtin", orderedProductsByGtin);
+        result.put("missingIds", missingIds);
+        return result;
+    }
+
+    /**
+     * Returns the productIds of the GTINs found, keyed by GTIN; the lookup only sees committed documents.
+     */
+    private static Map<String, String> resolveGtins(HttpSolrClient client, String gtinField, Set<String> gtins)
+            throws SolrServerException, IOException {
+        SolrQuery solrQuery = new SolrQuery(SolrUtil.makeTermsQuery(gtinField, gtins));
+        solrQuery.setFields("productId", gtinField);
+        solrQuery.setRows(gtins.size() * 2);
+        Map<String, String> productIds = new LinkedHashMap<>();
+        for (SolrDocument document : client.query(solrQuery).getResults()) {
+            Object productId = document.getFieldValue("productId");
+            if (productId == null || document.getFieldValues(gtinField) == null) {
+                continue;
+            }
+            for (Object gtin : document.getFieldValues(gtinField)) {
+                if (gtins.contains(gtin.toString())) {
+                    productIds.putIfAbsent(gtin.toString(), productId.toString());
+                }
+            }
+        }
+        return productIds;
+    }
+
+    private static Set<String> toSet(List<String> values) {
+        Set<String> result = new LinkedHashSet<>();
+        if (values != null) {
+            for (String value : values) {
+                if (UtilValidate.isNotEmpty(value) && UtilValidate.isNotEmpty(value.trim())) {
+                    result.add(value.trim());
+                }
+            }
+        }
+        return result;
+    }
+}
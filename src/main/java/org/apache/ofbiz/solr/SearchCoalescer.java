@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
+
+/**
+ * Single-flight execution of identical searches: while a search is running, callers with the same key wait for its
+ * result instead of sending the same request to solr.
+ * <p>
+ * Waiting is bounded by <code>solr.search.coalesce.wait</code> milliseconds, after which the caller runs the search
+ * itself, as it does when the running search throws; error results are shared like any other.
+ */
+public final class SearchCoalescer {
+
+    private static final String MODULE = SearchCoalescer.class.getName();
+    private static final boolean ENABLED = UtilProperties.propertyValueEqualsIgnoreCase(SolrUtil.SOLR_CONFIG_NAME,
+            "solr.search.coalesce.enabled", "true");
+    private static final long MAX_WAIT = UtilProperties.getPropertyAsLong(SolrUtil.SOLR_CONFIG_NAME, "solr.search.coalesce.wait", 10000);
+    private static final Map<String, CompletableFuture<Map<String, Object>>> IN_FLIGHT = new ConcurrentHashMap<>();
+    private static final LongAdder EXECUTIONS = new LongAdder();
+    private static final LongAdder COALESCED = new LongAdder();
+    private static final LongAdder WAIT_NANOS = new LongAdder();
+    private static final LongAdder TIMEOUTS = new LongAdder();
+    private static final LongAdder FAILURES = new LongAdder();
+
+    private SearchCoalescer() { }
+
+    /**
+     * Runs the search, or waits for the result of the identical search already running.
+     */
+    public static Map<String, Object> run(String key, SearchResultCache.Search search) {
+        if (!ENABLED) {
+            EXECUTIONS.increment();
+            return search.run();
+        }
+        CompletableFuture<Map<String, Object>> future = new CompletableFuture<>();
+        CompletableFuture<Map<String, Object>> running = IN_FLIGHT.putIfAbsent(key, future);
+        if (running != null) {
+            Map<String, Object> result = await(key, running);
+            if (result != null) {
+                return SearchResultCache.copyResult(result);
+            }
+            EXECUTIONS.increment();
+            return search.run();
+        }
+        EXECUTIONS.increment();
+        try {
+            Map<String, Object> result = search.run();
+            // the waiting callers copy a snapshot taken before this caller gets to change its result
+            future.complete(result != null ? SearchResultCache.copyResult(result) : null);
+            return result;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            IN_FLIGHT.remove(key, future);
+        }
+    }
+
+    private static Map<String, Object> await(String key, CompletableFuture<Map<String, Object>> running) {
+        long start = System.nanoTime();
+        try {
+            Map<String, Object> result = running.get(MAX_WAIT, TimeUnit.MILLISECONDS);
+            COALESCED.increment();
+            return result;
+        } catch (TimeoutException e) {
+            TIMEOUTS.increment();
+            Debug.logWarning("Solr: Gave up waiting for the running search " + key + " after " + MAX_WAIT + " ms", MODULE);
+        } catch (ExecutionException e) {
+            FAILURES.increment();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            WAIT_NANOS.add(System.nanoTime() - start);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the execution, coalesced wait, timeout and failure counters.
+     */
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", ENABLED);
+        stats.put("executionCount", EXECUTIONS.sum());
+        stats.put("coalescedCount", COALESCED.sum());
+        stats.put("waitMillis", WAIT_NANOS.sum() / 1000000);
+        stats.put("timeoutCount", TIMEOUTS.sum());
+        stats.put("failedLeaderCount", FAILURES.sum());
+        stats.put("inFlight", IN_FLIGHT.size());
+        return stats;
+    }
+
+    public static void resetStats() {
+        EXECUTIONS.reset();
+        COALESCED.reset();
+        WAIT_NANOS.reset();
+        TIMEOUTS.reset();
+        FAILURES.reset();
+    }
+}
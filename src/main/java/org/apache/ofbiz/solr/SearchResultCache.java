@@ -0,0 +1,321 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilGenerics;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.base.util.cache.UtilCache;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.ServiceUtil;
+import org.apache.solr.client.solrj.SolrRequest.METHOD;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.request.GenericSolrRequest;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+
+/**
+ * Cache of the results of the search services, keyed by service, index and normalized parameters.
+ * <p>
+ * The cached values are the result maps of the services, so a hit skips both the solr request and the mapping
+ * of the response. Entries are bounded by <code>solr.search.cache.size</code> and <code>solr.search.cache.expire</code>,
+ * and belong to the index version they were read from: the version of each index is checked at most every
+ * <code>solr.search.cache.version.check</code> milliseconds and a new commit drops the entries of the index.
+ */
+public final class SearchResultCache {
+
+    private static final String MODULE = SearchResultCache.class.getName();
+    private static final boolean ENABLED = UtilProperties.propertyValueEqualsIgnoreCase(SolrUtil.SOLR_CONFIG_NAME,
+            "solr.search.cache.enabled", "true");
+    private static final long VERSION_CHECK_INTERVAL = UtilProperties.getPropertyAsLong(SolrUtil.SOLR_CONFIG_NAME,
+            "solr.search.cache.version.check", 5000);
+    private static final UtilCache<String, Map<String, Object>> RESULTS = UtilCache.createUtilCache("solr.search.results",
+            UtilProperties.getPropertyAsInteger(SolrUtil.SOLR_CONFIG_NAME, "solr.search.cache.size", 1000),
+            UtilProperties.getPropertyAsLong(SolrUtil.SOLR_CONFIG_NAME, "solr.search.cache.expire", 300000));
+    /** Context entries that do not change the results. */
+    private static final Set<String> IGNORED_PARAMETERS = UtilMisc.toSet("userLogin", "locale", "timeZone", "login.username",
+            "login.password");
+    private static final Map<String, IndexVersion> VERSIONS = new ConcurrentHashMap<>();
+    private static final LongAdder HITS = new LongAdder();
+    private static final LongAdder MISSES = new LongAdder();
+    private static final LongAdder VERSION_CHANGES = new LongAdder();
+
+    private SearchResultCache() { }
+
+    /**
+     * Search whose successful result map can be cached.
+     */
+    public interface Search {
+        Map<String, Object> run();
+    }
+
+    /**
+     * Returns the cached result of the service for these parameters, or runs the search and caches its result
+     * if successful.
+     */
+    public static Map<String, Object> getOrSearch(String serviceName, String indexName, Map<String, ? extends Object> parameters,
+            Search search) {
+        if (!ENABLED) {
+            return SearchCoalescer.run(makeKey(serviceName, indexName, -1, parameters), search);
+        }
+        long version = getIndexVersion(indexName);
+        String key = makeKey(serviceName, indexName, version, parameters);
+        if (version < 0) {
+            MISSES.increment();
+            return SearchCoalescer.run(key, search);
+        }
+        Map<String, Object> result = RESULTS.get(key);
+        if (result != null) {
+            HITS.increment();
+            return copyResult(result);
+        }
+        MISSES.increment();
+        // identical searches missing the cache at the same time share one solr request
+        result = SearchCoalescer.run(key, search);
+        if (ServiceUtil.isSuccess(result)) {
+            RESULTS.put(key, copyResult(result));
+        }
+        return result;
+    }
+
+    /**
+     * Returns a deep copy of a result map, so that callers changing their results, documents or responses do not
+     * change the results of other callers.
+     */
+    public static Map<String, Object> copyResult(Map<String, Object> result) {
+        Map<String, Object> copy = new HashMap<>();
+        for (Map.Entry<String, Object> entry : result.entrySet()) {
+            copy.put(entry.getKey(), copyValue(entry.getValue()));
+        }
+        return copy;
+    }
+
+    private static Object copyValue(Object value) {
+        if (value instanceof SolrDocumentList) {
+            SolrDocumentList documents = (SolrDocumentList) value;
+            SolrDocumentList copy = new SolrDocumentList();
+            copy.setNumFound(documents.getNumFound());
+            copy.setStart(documents.getStart());
+            copy.setMaxScore(documents.getMaxScore());
+            copy.setNumFoundExact(documents.getNumFoundExact());
+            for (SolrDocument document : documents) {
+                copy.add((SolrDocument) copyValue(document));
+            }
+            return copy;
+        } else if (value instanceof SolrDocument) {
+            SolrDocument document = (SolrDocument) value;
+            SolrDocument copy = new SolrDocument();
+            for (Map.Entry<String, Object> field : document.entrySet()) {
+                copy.setField(field.getKey(), copyValue(field.getValue()));
+            }
+            if (document.hasChildDocuments()) {
+                for (SolrDocument child : document.getChildDocuments()) {
+                    copy.addChildDocument((SolrDocument) copyValue(child));
+                }
+            }
+            return copy;
+        } else if (value instanceof NamedList) {
+            NamedList<?> namedList = (NamedList<?>) value;
+            NamedList<Object> copy = value instanceof SimpleOrderedMap ? new SimpleOrderedMap<>() : new NamedList<>();
+            for (int i = 0; i < namedList.size(); i++) {
+                copy.add(namedList.getName(i), copyValue(namedList.getVal(i)));
+            }
+            return copy;
+        } else if (value instanceof Map) {
+            Map<Object, Object> copy = value instanceof TreeMap ? new TreeMap<>() : new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                copy.put(entry.getKey(), copyValue(entry.getValue()));
+            }
+            return copy;
+        } else if (value instanceof Set) {
+            Set<Object> copy = new LinkedHashSet<>();
+            for (Object element : (Set<?>) value) {
+                copy.add(copyValue(element));
+            }
+            return copy;
+        } else if (value instanceof Collection) {
+            List<Object> copy = new ArrayList<>();
+            for (Object element : (Collection<?>) value) {
+                copy.add(copyValue(element));
+            }
+            return copy;
+        }
+        return value;
+    }
+
+    /**
+     * Returns the key of the parameters, ignoring empty values and the order of the entries.
+     */
+    public static String makeKey(String serviceName, String indexName, long version, Map<String, ? extends Object> parameters) {
+        Map<String, String> normalized = new TreeMap<>();
+        for (Map.Entry<String, ? extends Object> entry : parameters.entrySet()) {
+            Object value = entry.getValue();
+            if (IGNORED_PARAMETERS.contains(entry.getKey()) || UtilValidate.isEmpty(value)) {
+                continue;
+            }
+            if (value instanceof Map) {
+                // same entries in any order, same key
+                value = new TreeMap<>(UtilGenerics.<Map<String, Object>>cast(value));
+            }
+            // values are kept as given, the services pass them on to solr untrimmed
+            normalized.put(entry.getKey(), value.toString());
+        }
+        return indexName + "|" + version + "|" + serviceName + "|" + normalized;
+    }
+
+    /**
+     * Returns the version of the index, checking it against solr when the last check is older than the interval,
+     * or -1 when it cannot be read.
+     */
+    public static long getIndexVersion(String indexName) {
+        IndexVersion indexVersion = VERSIONS.computeIfAbsent(indexName, k -> new IndexVersion());
+        // one search checks the version, the others go on with the last known one rather than waiting for it
+        if (System.currentTimeMillis() - indexVersion.checkedAt >= VERSION_CHECK_INTERVAL && indexVersion.checking.compareAndSet(false, true)) {
+            try {
+                if (System.currentTimeMillis() - indexVersion.checkedAt >= VERSION_CHECK_INTERVAL) {
+                    long version = readIndexVersion(indexName);
+                    if (version != indexVersion.version && indexVersion.version >= 0) {
+                        VERSION_CHANGES.increment();
+                        removeEntries(indexName);
+                    }
+                    indexVersion.version = version;
+                    indexVersion.checkedAt = System.currentTimeMillis();
+                }
+            } finally {
+                indexVersion.checking.set(false);
+            }
+        }
+        return indexVersion.version;
+    }
+
+    private static long readIndexVersion(String indexName) {
+        HttpSolrClient client = null;
+        try {
+            client = SolrUtil.getHttpSolrClient(indexName);
+            // only the index section, listing the fields of a large index is slow
+            ModifiableSolrParams params = new ModifiableSolrParams();
+            params.set("show", "index");
+            params.set("numTerms", 0);
+            NamedList<Object> response = new GenericSolrRequest(METHOD.GET, "/admin/luke", params).process(client).getResponse();
+            Object index = response != null ? response.get("index") : null;
+            Object version = index instanceof NamedList ? ((NamedList<?>) index).get("version") : null;
+            return version instanceof Number ? ((Number) version).longValue() : -1;
+        } catch (Exception e) {
+            Debug.logWarning(e, "Solr: Cannot read the version of index " + indexName + ", its results are not cached", MODULE);
+            return -1;
+        } finally {
+            if (client != null) {
+                try {
+                    client.close();
+                } catch (Exception e) {
+                    Debug.logError(e, MODULE);
+                }
+            }
+        }
+    }
+
+    private static void removeEntries(String indexName) {
+        String prefix = indexName + "|";
+        for (String key : RESULTS.getCacheLineKeys()) {
+            if (key.startsWith(prefix)) {
+                RESULTS.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Forces a version check of the index on the next search, ie after a commit of this instance.
+     */
+    public static void invalidate(String indexName) {
+        IndexVersion indexVersion = VERSIONS.get(indexName);
+        if (indexVersion != null) {
+            indexVersion.checkedAt = 0;
+        }
+    }
+
+    public static void clear() {
+        RESULTS.clear();
+        VERSIONS.clear();
+    }
+
+    /**
+     * Returns the hit, miss and version change counters with the current size of the cache.
+     */
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long hits = HITS.sum();
+        long misses = MISSES.sum();
+        stats.put("enabled", ENABLED);
+        stats.put("hitCount", hits);
+        stats.put("missCount", misses);
+        stats.put("hitRatio", hits + misses > 0 ? (double) hits / (hits + misses) : 0.0);
+        stats.put("versionChangeCount", VERSION_CHANGES.sum());
+        stats.put("size", RESULTS.size());
+        return stats;
+    }
+
+    public static void resetStats() {
+        HITS.reset();
+        MISSES.reset();
+        VERSION_CHANGES.reset();
+    }
+
+    /**
+     * Returns the search cache, coalescing and on demand spellcheck statistics, optionally clearing the cache.
+     */
+    public static Map<String, Object> getSearchStats(DispatchContext dctx, Map<String, Object> context) {
+        Map<String, Object> result = ServiceUtil.returnSuccess();
+        result.put("cache", getStats());
+        result.put("coalescing", SearchCoalescer.getStats());
+        result.put("spellcheck", AdaptiveSpellcheck.getStats());
+        if (Boolean.TRUE.equals(context.get("reset"))) {
+            resetStats();
+            SearchCoalescer.resetStats();
+            AdaptiveSpellcheck.resetStats();
+        }
+        if (Boolean.TRUE.equals(context.get("clear"))) {
+            clear();
+        }
+        return result;
+    }
+
+    private static final class IndexVersion {
+        private final AtomicBoolean checking = new AtomicBoolean();
+        private volatile long version = -1;
+        private volatile long checkedAt;
+    }
+}
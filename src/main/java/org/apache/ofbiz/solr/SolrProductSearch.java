@@ -42,18 +42,25 @@ import org.apache.ofbiz.entity.GenericDelegator;
 import org.apache.ofbiz.entity.GenericEntityException;
 import org.apache.ofbiz.entity.GenericValue;
 import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.product.product.ProductWorker;
 import org.apache.ofbiz.service.DispatchContext;
 import org.apache.ofbiz.service.GenericServiceException;
 import org.apache.ofbiz.service.LocalDispatcher;
 import org.apache.ofbiz.service.ServiceUtil;
+import org.apache.ofbiz.solr.indexing.InventoryAtpAggregator;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.impl.HttpSolrClient;
 import org.apache.solr.client.solrj.response.FacetField;
 import org.apache.solr.client.solrj.response.FacetField.Count;
 import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.response.SpellCheckResponse;
 import org.apache.solr.client.solrj.response.SpellCheckResponse.Suggestion;
+import org.apache.solr.client.solrj.response.json.BucketBasedJsonFacet;
+import org.apache.solr.client.solrj.response.json.BucketJsonFacet;
+import org.apache.solr.client.solrj.response.json.NestableJsonFacet;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.CursorMarkParams;
 
 /**
  * Base class for OFBiz Test Tools test case implementations.
@@ -80,6 +87,14 @@ public abstract class SolrProductSearch {
             // Debug.logVerbose("Solr: addToSolr: Running indexing for productId '" + productId + "'", MODULE);
             try {
                 GenericValue product = EntityQuery.use(delegator).from("Product").where("productId", productId).queryOne();
+                if (product != null && "Y".equals(product.getString("isVariant"))
+                        && !SolrUtil.VARIANT_MODE_FLAT.equals(SolrUtil.getVariantMode(solrIndexName))) {
+                    // variants are part of the document of their virtual product
+                    GenericValue parentProduct = ProductWorker.getParentProduct(productId, delegator);
+                    if (parentProduct != null) {
+                        product = parentProduct;
+                    }
+                }
                 Map<String, Object> dispatchContext = ProductUtil.getProductContent(product, dctx, context);
                 dispatchContext.put("treatConnectErrorNonFatal", SolrUtil.isEcaTreatConnectErrorNonFatal());
                 dispatchContext.put("indexName", solrIndexName);
@@ -141,6 +156,7 @@ public abstract class SolrProductSearch {
             // push Documents to server
             client.add(docs);
             client.commit();
+            SearchResultCache.invalidate(solrIndexName);
 
             final String statusStr = UtilProperties.getMessage(RESOURCE, "SolrDocumentForProductIdAddedToSolrIndex",
                     UtilMisc.toMap("productId", context.get("productId")), locale);
@@ -214,6 +230,7 @@ public abstract class SolrProductSearch {
             client = SolrUtil.getHttpSolrClient(solrIndexName);
             client.add(docs);
             client.commit();
+            SearchResultCache.invalidate(solrIndexName);
 
             final String statusStr = UtilProperties.getMessage(RESOURCE, "SolrAddedDocumentsToSolrIndex",
                     UtilMisc.toMap("fieldList", fieldList.size()), locale);
@@ -275,22 +292,7 @@ public abstract class SolrProductSearch {
             solrQuery.setQuery((String) context.get("query"));
             boolean faceted = (Boolean) context.get("facet");
             if (faceted) {
-                solrQuery.setFacet(faceted);
-                solrQuery.addFacetField("manu");
-                solrQuery.addFacetField("cat");
-                solrQuery.setFacetMinCount(1);
-                solrQuery.setFacetLimit(8);
-
-                solrQuery.addFacetQuery("listPrice:[0 TO 50]");
-                solrQuery.addFacetQuery("listPrice:[50 TO 100]");
-                solrQuery.addFacetQuery("listPrice:[100 TO 250]");
-                solrQuery.addFacetQuery("listPrice:[250 TO 500]");
-                solrQuery.addFacetQuery("listPrice:[500 TO 1000]");
-                solrQuery.addFacetQuery("listPrice:[1000 TO 2500]");
-                solrQuery.addFacetQuery("listPrice:[2500 TO 5000]");
-                solrQuery.addFacetQuery("listPrice:[5000 TO 10000]");
-                solrQuery.addFacetQuery("listPrice:[10000 TO 50000]");
-                solrQuery.addFacetQuery("listPrice:[50000 TO *]");
+                FacetProfile.get((String) context.get("facetProfile")).apply(solrQuery);
             }
 
             boolean spellCheck = (Boolean) context.get("spellcheck");
@@ -298,19 +300,17 @@ public abstract class SolrProductSearch {
                 solrQuery.setParam("spellcheck", spellCheck);
             }
 
-            boolean highLight = (Boolean) context.get("highlight");
+            boolean highLight = Boolean.TRUE.equals(context.get("highlight"));
             if (highLight) {
-                solrQuery.setHighlight(highLight);
-                solrQuery.setHighlightSimplePre("<span class=\"highlight\">");
-                solrQuery.addHighlightField("description");
-                solrQuery.setHighlightSimplePost("</span>");
-                solrQuery.setHighlightSnippets(2);
+                SolrUtil.applyHighlighting(solrQuery, (String) context.get("highlightFields"));
             }
 
             // Set additional Parameter
             // SolrQuery.ORDER order = SolrQuery.ORDER.desc;
 
-            if (context.get("viewIndex") != null && (Integer) context.get("viewIndex") > 0) {
+            // a cursor replaces the start offset, the page position is kept by solr in the cursor mark
+            String cursorMark = (String) context.get("cursorMark");
+            if (UtilValidate.isEmpty(cursorMark) && context.get("viewIndex") != null && (Integer) context.get("viewIndex") > 0) {
                 solrQuery.setStart((Integer) context.get("viewIndex"));
             }
             if (context.get("viewSize") != null && (Integer) context.get("viewSize") > 0) {
@@ -330,8 +330,17 @@ public abstract class SolrProductSearch {
             if (UtilValidate.isNotEmpty(queryFilter)) {
                 solrQuery.setFilterQueries(queryFilter.split(" "));
             }
+            // exact and unscored, so the filter cache can reuse it across pages and sorts
+            if (UtilValidate.isNotEmpty(context.get("categoryId"))) {
+                solrQuery.addFilterQuery("{!term f=categoryId}" + context.get("categoryId"));
+            }
+            // typed numeric fields, ie price_[PriceType] and pkg_[PackageUOM]_[dimension] of the PIES cores
+            SolrUtil.addRangeFilters(solrQuery, UtilGenerics.cast(context.get("rangeFilters")));
+            String fieldProfile = (String) context.get("fieldProfile");
             if ((String) context.get("returnFields") != null) {
                 solrQuery.setFields((String) context.get("returnFields"));
+            } else if (UtilValidate.isNotEmpty(fieldProfile)) {
+                solrQuery.setFields(SolrUtil.getProfileFields(fieldProfile));
             }
 
             // if ((Boolean) context.get("sortByReverse"))order.reverse();
@@ -349,9 +358,41 @@ public abstract class SolrProductSearch {
                 solrQuery.addFacetQuery((String) context.get("facetQuery"));
             }
 
+            if (UtilValidate.isNotEmpty(cursorMark)) {
+                // cursors need a total order, ties are broken on the unique key
+                boolean sortedByKey = false;
+                for (SolrQuery.SortClause sortClause : solrQuery.getSorts()) {
+                    sortedByKey |= "productId".equals(sortClause.getItem());
+                }
+                if (!sortedByKey) {
+                    solrQuery.addSort("productId", SolrQuery.ORDER.asc);
+                }
+                solrQuery.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+            }
+
+            String variantMode = (String) context.get("variantMode");
+            if (UtilValidate.isEmpty(variantMode) && SolrUtil.VARIANT_MODE_NESTED.equals(SolrUtil.getVariantMode(solrIndexName))) {
+                variantMode = "blockJoin";
+            }
+            if ("collapse".equals(variantMode)) {
+                // one result per virtual product, standalone products are kept as they are
+                solrQuery.addFilterQuery("{!collapse field=parentProductId nullPolicy=expand}");
+            } else if ("blockJoin".equals(variantMode)) {
+                // only the virtual products, with their variants attached
+                solrQuery.addFilterQuery("docType:" + SolrUtil.DOC_TYPE_PRODUCT);
+                String fields = solrQuery.getFields() != null ? solrQuery.getFields() : "*";
+                String childFields = UtilValidate.isNotEmpty(fieldProfile) ? SolrUtil.getProfileChildFields(fieldProfile) : null;
+                solrQuery.setFields(fields + ",[child parentFilter=docType:" + SolrUtil.DOC_TYPE_PRODUCT
+                        + " childFilter=docType:" + SolrUtil.DOC_TYPE_VARIANT + " limit=" + SolrUtil.getVariantChildLimit()
+                        + (UtilValidate.isNotEmpty(childFields) ? " fl=" + childFields : "") + "]");
+            }
+
             QueryResponse rsp = client.query(solrQuery);
             result = ServiceUtil.returnSuccess();
             result.put("queryResult", rsp);
+            if (rsp.getNextCursorMark() != null) {
+                result.put("nextCursorMark", rsp.getNextCursorMark());
+            }
         } catch (Exception e) {
             Debug.logError(e, e.getMessage(), MODULE);
             result = ServiceUtil.returnError(e.toString());
@@ -371,6 +412,11 @@ public abstract class SolrProductSearch {
      * Performs solr products search.
      */
     public static Map<String, Object> productsSearch(DispatchContext dctx, Map<String, Object> context) {
+        return SearchResultCache.getOrSearch("solrProductsSearch", (String) context.get("indexName"), context,
+                () -> productsSearchUncached(dctx, context));
+    }
+
+    private static Map<String, Object> productsSearchUncached(DispatchContext dctx, Map<String, Object> context) {
         Map<String, Object> result;
         Locale locale = (Locale) context.get("locale");
         LocalDispatcher dispatcher = dctx.getDispatcher();
@@ -380,7 +426,20 @@ public abstract class SolrProductSearch {
             Map<String, Object> dispatchMap = new HashMap<>();
             if (UtilValidate.isNotEmpty(context.get("productCategoryId"))) {
                 String productCategoryId = (String) context.get("productCategoryId");
-                dispatchMap.put("query", "cat:*" + productCategoryId + "*");
+                if (SolrUtil.isCategoryFilterBrowse(solrIndexName)) {
+                    // browsing: the category is a cached filter, the order does not depend on relevance
+                    dispatchMap.put("query", "*:*");
+                    dispatchMap.put("categoryId", productCategoryId);
+                    if (UtilValidate.isNotEmpty(context.get("sortBy"))) {
+                        dispatchMap.put("sortBy", context.get("sortBy"));
+                        dispatchMap.put("sortByReverse", Boolean.TRUE.equals(context.get("sortByReverse")));
+                    } else {
+                        dispatchMap.put("sortBy", SolrUtil.getBrowseSortField());
+                        dispatchMap.put("sortByReverse", false);
+                    }
+                } else {
+                    dispatchMap.put("query", "cat:*" + productCategoryId + "*");
+                }
             } else {
                 return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE, "SolrMissingProductCategoryId", locale));
             }
@@ -393,9 +452,19 @@ public abstract class SolrProductSearch {
             if (context.get("queryFilter") != null) {
                 dispatchMap.put("queryFilter", context.get("queryFilter"));
             }
+            if (context.get("cursorMark") != null) {
+                dispatchMap.put("cursorMark", context.get("cursorMark"));
+            }
+            if (context.get("rangeFilters") != null) {
+                dispatchMap.put("rangeFilters", context.get("rangeFilters"));
+            }
+            dispatchMap.put("fieldProfile", UtilValidate.isNotEmpty(context.get("fieldProfile"))
+                    ? context.get("fieldProfile") : SolrUtil.getDefaultFieldProfile());
             dispatchMap.put("facet", false);
-            dispatchMap.put("spellcheck", true);
-            dispatchMap.put("highlight", true);
+            // browsing has no words to correct, spellcheck is only kept when every search asks for it
+            dispatchMap.put("spellcheck", !AdaptiveSpellcheck.isAdaptive(solrIndexName));
+            dispatchMap.put("highlight", Boolean.TRUE.equals(context.get("highlight")));
+            dispatchMap.put("highlightFields", context.get("highlightFields"));
             dispatchMap.put("indexName", solrIndexName);
 
             Map<String, Object> searchResult = dispatcher.runSync("runSolrQuery", dispatchMap);
@@ -411,6 +480,10 @@ public abstract class SolrProductSearch {
                 result.put("listSize", queryResult.getResults().getNumFound());
                 result.put("viewIndex", queryResult.getResults().getStart());
                 result.put("viewSize", queryResult.getResults().size());
+                result.put("nextCursorMark", searchResult.get("nextCursorMark"));
+                if (queryResult.getHighlighting() != null) {
+                    result.put("highlighting", queryResult.getHighlighting());
+                }
             } else {
                 result = ServiceUtil.returnFailure();
             }
@@ -427,6 +500,11 @@ public abstract class SolrProductSearch {
      * The search form requires the result to be in a specific layout, so this will generate the proper results.
      */
     public static Map<String, Object> keywordSearch(DispatchContext dctx, Map<String, Object> context) {
+        return SearchResultCache.getOrSearch("solrKeywordSearch", (String) context.get("indexName"), context,
+                () -> keywordSearchUncached(dctx, context));
+    }
+
+    private static Map<String, Object> keywordSearchUncached(DispatchContext dctx, Map<String, Object> context) {
         Map<String, Object> result;
         LocalDispatcher dispatcher = dctx.getDispatcher();
         String solrIndexName = (String) context.get("indexName");
@@ -449,7 +527,28 @@ public abstract class SolrProductSearch {
             if (context.get("queryFilter") != null) {
                 dispatchMap.put("queryFilter", context.get("queryFilter"));
             }
-            dispatchMap.put("spellcheck", true);
+            if (context.get("cursorMark") != null) {
+                dispatchMap.put("cursorMark", context.get("cursorMark"));
+            }
+            if (context.get("rangeFilters") != null) {
+                dispatchMap.put("rangeFilters", context.get("rangeFilters"));
+            }
+            if (UtilValidate.isNotEmpty(context.get("sortBy"))) {
+                dispatchMap.put("sortBy", context.get("sortBy"));
+                dispatchMap.put("sortByReverse", Boolean.TRUE.equals(context.get("sortByReverse")));
+            }
+            dispatchMap.put("fieldProfile", UtilValidate.isNotEmpty(context.get("fieldProfile"))
+                    ? context.get("fieldProfile") : SolrUtil.getDefaultFieldProfile());
+            if (context.get("returnFields") != null) {
+                dispatchMap.put("returnFields", context.get("returnFields"));
+            }
+            if (context.get("facetProfile") != null) {
+                dispatchMap.put("facetProfile", context.get("facetProfile"));
+            }
+            dispatchMap.put("highlight", Boolean.TRUE.equals(context.get("highlight")));
+            dispatchMap.put("highlightFields", context.get("highlightFields"));
+            boolean adaptiveSpellcheck = AdaptiveSpellcheck.isAdaptive(solrIndexName);
+            dispatchMap.put("spellcheck", !adaptiveSpellcheck);
             dispatchMap.put("indexName", solrIndexName);
 
             Map<String, Object> searchResult = dispatcher.runSync("runSolrQuery", dispatchMap);
@@ -458,9 +557,14 @@ public abstract class SolrProductSearch {
             }
             QueryResponse queryResult = (QueryResponse) searchResult.get("queryResult");
 
+            // suggestions are only worth their cost when the search found little
+            SpellCheckResponse spellCheckResponse = adaptiveSpellcheck
+                    ? AdaptiveSpellcheck.check(solrIndexName, (String) context.get("query"), (String) context.get("queryFilter"),
+                            queryResult.getResults().getNumFound())
+                    : queryResult.getSpellCheckResponse();
             List<List<String>> suggestions = new ArrayList<>();
-            if (queryResult.getSpellCheckResponse() != null && queryResult.getSpellCheckResponse().getSuggestions() != null) {
-                Iterator<Suggestion> iter = queryResult.getSpellCheckResponse().getSuggestions().iterator();
+            if (spellCheckResponse != null && spellCheckResponse.getSuggestions() != null) {
+                Iterator<Suggestion> iter = spellCheckResponse.getSuggestions().iterator();
                 while (iter.hasNext()) {
                     Suggestion resultDoc = iter.next();
                     Debug.logInfo("Suggestion " + resultDoc.getAlternatives(), MODULE);
@@ -469,33 +573,29 @@ public abstract class SolrProductSearch {
             }
 
             boolean isCorrectlySpelled = true;
-            if (queryResult.getSpellCheckResponse() != null) {
-                isCorrectlySpelled = queryResult.getSpellCheckResponse().isCorrectlySpelled();
+            if (spellCheckResponse != null) {
+                isCorrectlySpelled = spellCheckResponse.isCorrectlySpelled();
             }
 
             result = ServiceUtil.returnSuccess();
             result.put("isCorrectlySpelled", isCorrectlySpelled);
 
+            // the buckets of the profile come with their labels, only the extra facet query needs its label extracted
+            FacetProfile facetProfile = FacetProfile.get((String) context.get("facetProfile"));
+            Map<String, String> facetQueries = facetProfile.getRangeCounts(queryResult);
             Map<String, Integer> facetQuery = queryResult.getFacetQuery();
-            Map<String, String> facetQueries = new HashMap<>();
-            for (String fq : facetQuery.keySet()) {
-                if (facetQuery.get(fq) > 0) {
-                    facetQueries.put(fq, fq.replaceAll("^.*\\u005B(.*)\\u005D", "$1") + " (" + facetQuery.get(fq) + ")");
-                }
-            }
-
-            Map<String, Map<String, Long>> facetFields = new HashMap<>();
-            List<FacetField> facets = queryResult.getFacetFields();
-            for (FacetField facet : facets) {
-                Map<String, Long> facetEntry = new HashMap<>();
-                List<FacetField.Count> facetEntries = facet.getValues();
-                if (UtilValidate.isNotEmpty(facetEntries)) {
-                    for (FacetField.Count fcount : facetEntries) {
-                        facetEntry.put(fcount.getName(), fcount.getCount());
+            if (facetQuery != null) {
+                for (Map.Entry<String, Integer> entry : facetQuery.entrySet()) {
+                    if (entry.getValue() > 0) {
+                        String fq = entry.getKey();
+                        int start = fq.indexOf('[');
+                        int end = fq.lastIndexOf(']');
+                        String label = start >= 0 && end > start ? fq.substring(start + 1, end) : fq;
+                        facetQueries.put(fq, label + " (" + entry.getValue() + ")");
                     }
-                    facetFields.put(facet.getName(), facetEntry);
                 }
             }
+            Map<String, Map<String, Long>> facetFields = facetProfile.getFieldCounts(queryResult);
 
             result.put("results", queryResult.getResults());
             result.put("facetFields", facetFields);
@@ -505,6 +605,10 @@ public abstract class SolrProductSearch {
             result.put("viewIndex", queryResult.getResults().getStart());
             result.put("viewSize", queryResult.getResults().size());
             result.put("suggestions", suggestions);
+            result.put("nextCursorMark", searchResult.get("nextCursorMark"));
+            if (queryResult.getHighlighting() != null) {
+                result.put("highlighting", queryResult.getHighlighting());
+            }
 
         } catch (Exception e) {
             Debug.logError(e, e.getMessage(), MODULE);
@@ -517,6 +621,11 @@ public abstract class SolrProductSearch {
      * Returns a map of the categories currently available under the root element.
      */
     public static Map<String, Object> getAvailableCategories(DispatchContext dctx, Map<String, Object> context) {
+        return SearchResultCache.getOrSearch("solrAvailableCategories", (String) context.get("indexName"), context,
+                () -> getAvailableCategoriesUncached(dctx, context));
+    }
+
+    private static Map<String, Object> getAvailableCategoriesUncached(DispatchContext dctx, Map<String, Object> context) {
         Map<String, Object> result;
         String solrIndexName = (String) context.get("indexName");
         try {
@@ -536,6 +645,17 @@ public abstract class SolrProductSearch {
                 catalogId = (String) context.get("catalogId");
             }
 
+            if (SolrUtil.isHierarchicalCategoryFacets(solrIndexName)) {
+                String categoryPath = context.get("productCategoryId") != null
+                        ? CategoryFacetTree.getCategoryPath(dctx.getDelegator(), (String) context.get("productCategoryId")) : null;
+                CategoryFacetTree tree = CategoryFacetTree.query(solrIndexName, catalogId, categoryPath, (String) context.get("productId"),
+                        displayProducts, viewIndex, viewSize);
+                result = ServiceUtil.returnSuccess();
+                result.put("categories", tree.getTrailCounts());
+                result.put("numFound", tree.getNumFound());
+                return result;
+            }
+
             String productCategoryId = (String) context.get("productCategoryId") != null
                     ? CategoryUtil.getCategoryNameWithTrail((String) context.get("productCategoryId"), dctx) : null;
             Debug.logInfo("productCategoryId " + productCategoryId, MODULE);
@@ -572,8 +692,15 @@ public abstract class SolrProductSearch {
 
     /**
      * Return a map of the side deep categories.
+     * <p>
+     * The trail comes from the {@link CategoryTreeSnapshot} and the menus of all its levels from a single solr request.
      */
     public static Map<String, Object> getSideDeepCategories(DispatchContext dctx, Map<String, Object> context) {
+        return SearchResultCache.getOrSearch("solrSideDeepCategory", (String) context.get("indexName"), context,
+                () -> getSideDeepCategoriesUncached(dctx, context));
+    }
+
+    private static Map<String, Object> getSideDeepCategoriesUncached(DispatchContext dctx, Map<String, Object> context) {
         Map<String, Object> result;
         String solrIndexName = (String) context.get("indexName");
         try {
@@ -582,63 +709,43 @@ public abstract class SolrProductSearch {
                 catalogId = (String) context.get("catalogId");
             }
 
-            String productCategoryId = (String) context.get("productCategoryId") != null
-                    ? CategoryUtil.getCategoryNameWithTrail((String) context.get("productCategoryId"), dctx) : null;
-            result = ServiceUtil.returnSuccess();
             Map<String, List<Map<String, Object>>> catLevel = new HashMap<>();
-            String[] trailElements = null;
+            String productCategoryId = (String) context.get("productCategoryId");
             if (productCategoryId != null) {
-                Debug.logInfo("productCategoryId: " + productCategoryId, MODULE);
-                // Add toplevel categories
-                trailElements = productCategoryId.split("/");
-            }
-
-            //iterate over actual results
-            if (trailElements != null) {
-                for (String elements : trailElements) {
-                    // catIds must be greater than 3 chars
-                    if (elements.length() > 3) {
-                        Debug.logInfo("elements: " + elements, MODULE);
-                        String categoryPath = CategoryUtil.getCategoryNameWithTrail(elements, dctx);
-                        String[] categoryPathArray = categoryPath.split("/");
-                        int level = Integer.parseInt(categoryPathArray[0]);
-                        String facetQuery = CategoryUtil.getFacetFilterForCategory(categoryPath, dctx);
-                        Map<String, Object> query = SolrUtil.categoriesAvailable(catalogId, categoryPath, null, facetQuery, false, 0, 0,
-                                solrIndexName);
-                        QueryResponse cat = (QueryResponse) query.get("rows");
+                List<String> trail = CategoryTreeSnapshot.get(dctx.getDelegator()).getTrails(productCategoryId).get(0);
+                if (SolrUtil.isHierarchicalCategoryFacets(solrIndexName)) {
+                    // the counts of the children of every trail element come from the same tree
+                    catLevel = CategoryFacetTree.query(solrIndexName, catalogId, null, null, false, 0, 0).getSideDeepMenus(trail);
+                } else {
+                    QueryResponse cat = SolrUtil.sideDeepCategoriesAvailable(catalogId, trail, solrIndexName);
+                    NestableJsonFacet facets = cat.getJsonFacetingResponse();
+                    for (int level = 0; level < trail.size(); level++) {
                         List<Map<String, Object>> categories = new ArrayList<>();
-
-                        List<FacetField> catList = cat.getFacetFields();
-                        for (Iterator<FacetField> catIterator = catList.iterator(); catIterator.hasNext();) {
-                            FacetField field = catIterator.next();
-                            List<Count> catL = field.getValues();
-                            if (catL != null) {
-                                for (Iterator<Count> catIter = catL.iterator(); catIter.hasNext();) {
-                                    FacetField.Count f = catIter.next();
-                                    if (f.getCount() > 0) {
-                                        Map<String, Object> catMap = new HashMap<>();
-                                        LinkedList<String> iName = new LinkedList<>();
-                                        iName.addAll(Arrays.asList(f.getName().split("/")));
-                                        catMap.put("catId", iName.getLast());
-                                        iName.removeFirst();
-                                        String path = f.getName();
-                                        catMap.put("path", path);
-                                        if (level > 0) {
-                                            iName.removeLast();
-                                            catMap.put("parentCategory", StringUtils.join(iName, "/"));
-                                        } else {
-                                            catMap.put("parentCategory", null);
-                                        }
-                                        catMap.put("count", Long.toString(f.getCount()));
-                                        categories.add(catMap);
-                                    }
+                        BucketBasedJsonFacet menu = facets != null ? facets.getBucketBasedFacets("menu" + level) : null;
+                        if (menu != null) {
+                            for (BucketJsonFacet bucket : menu.getBuckets()) {
+                                Map<String, Object> catMap = new HashMap<>();
+                                LinkedList<String> iName = new LinkedList<>();
+                                String path = bucket.getVal().toString();
+                                iName.addAll(Arrays.asList(path.split("/")));
+                                catMap.put("catId", iName.getLast());
+                                iName.removeFirst();
+                                catMap.put("path", path);
+                                if (level > 0) {
+                                    iName.removeLast();
+                                    catMap.put("parentCategory", StringUtils.join(iName, "/"));
+                                } else {
+                                    catMap.put("parentCategory", null);
                                 }
+                                catMap.put("count", Long.toString(bucket.getCount()));
+                                categories.add(catMap);
                             }
                         }
                         catLevel.put("menu-" + level, categories);
                     }
                 }
             }
+            result = ServiceUtil.returnSuccess();
             result.put("categories", catLevel);
             result.put("numFound", (long) 0);
 
@@ -670,6 +777,16 @@ public abstract class SolrProductSearch {
             // now lets fetch all products
             List<Map<String, Object>> solrDocs = new ArrayList<>();
             List<GenericValue> products = delegator.findList("Product", null, null, null, null, true);
+            if (products != null && !SolrUtil.VARIANT_MODE_FLAT.equals(SolrUtil.getVariantMode(solrIndexName))) {
+                // variants are indexed within the documents of their virtual products
+                List<GenericValue> topLevelProducts = new ArrayList<>();
+                for (GenericValue product : products) {
+                    if (!"Y".equals(product.getString("isVariant"))) {
+                        topLevelProducts.add(product);
+                    }
+                }
+                products = topLevelProducts;
+            }
             int numDocs = 0;
             if (products != null) {
                 numDocs = products.size();
@@ -677,16 +794,19 @@ public abstract class SolrProductSearch {
 
             Debug.logInfo("Solr: Clearing solr index and rebuilding with " + numDocs + " found products", MODULE);
 
-            Iterator<GenericValue> productIterator = products.iterator();
-            while (productIterator.hasNext()) {
-                GenericValue product = productIterator.next();
-                Map<String, Object> dispatchContext = ProductUtil.getProductContent(product, dctx, context);
-                solrDocs.add(dispatchContext);
+            // one grouped query for the inventory of the whole catalog, chunks then read it from memory
+            InventoryAtpAggregator.aggregateAll(delegator);
+            // the rebuild changes no data, its enricher stages can query outside of its transaction
+            int batchSize = SolrUtil.getIndexBatchSize();
+            for (int start = 0; start < numDocs; start += batchSize) {
+                List<GenericValue> productChunk = products.subList(start, Math.min(start + batchSize, numDocs));
+                solrDocs.addAll(ProductUtil.getProductContents(productChunk, dctx, context, true));
             }
 
             // this removes everything from the index
             client.deleteByQuery("*:*");
             client.commit();
+            SearchResultCache.invalidate(solrIndexName);
 
             // THis adds all products to the Index (instantly)
             Map<String, Object> runResult = dispatcher.runSync("addListToSolrIndex",
@@ -19,11 +19,20 @@
 package org.apache.ofbiz.solr;
 
 import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
 
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.config.RequestConfig;
@@ -34,6 +43,7 @@ import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrRequest.METHOD;
+import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.impl.HttpSolrClient;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrInputDocument;
@@ -41,11 +51,15 @@ import org.apache.ofbiz.base.component.ComponentConfig;
 import org.apache.ofbiz.base.component.ComponentConfig.WebappInfo;
 import org.apache.ofbiz.base.component.ComponentException;
 import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.StringUtil;
 import org.apache.ofbiz.base.util.UtilGenerics;
 import org.apache.ofbiz.base.util.UtilHttp;
+import org.apache.ofbiz.base.util.UtilMisc;
 import org.apache.ofbiz.base.util.UtilProperties;
 import org.apache.ofbiz.base.util.UtilValidate;
 import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.transaction.GenericTransactionException;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
 
 /**
  * Solr utility class.
@@ -55,9 +69,21 @@ public final class SolrUtil {
     private SolrUtil() { }
     private static final String MODULE = SolrUtil.class.getName();
     private static final String[] SOLR_PRODUCT_ATTRIBUTE = {"productId", "internalName", "manu", "size", "smallImage", "mediumImage", "largeImage",
-            "listPrice", "defaultPrice", "inStock", "isVirtual" };
-
-    private static final String SOLR_CONFIG_NAME = "solrconfig.properties";
+            "listPrice", "defaultPrice", "inStock", "isVirtual", "parentProductId", "docType", "variantPriceMin", "variantPriceMax",
+            "variantInStock", "variantCount" };
+
+    /** Variants are indexed as top-level documents of their own. */
+    public static final String VARIANT_MODE_FLAT = "flat";
+    /** Variants are folded into aggregated fields of their virtual product and not indexed on their own. */
+    public static final String VARIANT_MODE_AGGREGATE = "aggregate";
+    /** Variants are indexed as child documents of their virtual product, in addition to the aggregated fields. */
+    public static final String VARIANT_MODE_NESTED = "nested";
+    public static final String DOC_TYPE_PRODUCT = "product";
+    public static final String DOC_TYPE_VARIANT = "variant";
+
+    public static final String SOLR_CONFIG_NAME = "solrconfig.properties";
+    private static final int SUGGEST_MAX_CHARS = 200;
+    private static final String[] TERMS_SEPARATORS = {",", "|", ";", "\u001F"};
     private static final String SOLR_URL = makeSolrWebappUrl();
 
     private static final String SOCKET_TIMEOUT_STRING = UtilProperties.getPropertyValue(SOLR_CONFIG_NAME, "solr.client.socket.timeout");
@@ -136,6 +162,283 @@ public final class SolrUtil {
         return Boolean.TRUE.equals(ecaEnabled);
     }
 
+    /**
+     * Returns the number of products whose data is prefetched and assembled together when (re)building an index.
+     */
+    public static int getIndexBatchSize() {
+        int batchSize = UtilProperties.getPropertyAsInteger(SOLR_CONFIG_NAME, "solr.index.batch.size", 500);
+        return batchSize > 0 ? batchSize : 500;
+    }
+
+    /**
+     * Returns the locales whose product names and descriptions are indexed in the <code>*_i18n_[locale]</code> fields.
+     */
+    public static List<Locale> getIndexLocales() {
+        List<Locale> locales = new ArrayList<>();
+        String localesString = UtilProperties.getPropertyValue(SOLR_CONFIG_NAME, "solr.index.locales", "en,de,fr");
+        for (String localeString : StringUtil.split(localesString, ",")) {
+            Locale locale = UtilMisc.parseLocale(localeString.trim());
+            if (locale != null && !locales.contains(locale)) {
+                locales.add(locale);
+            }
+        }
+        if (locales.isEmpty()) {
+            locales.add(Locale.ENGLISH);
+        }
+        return locales;
+    }
+
+    /**
+     * Returns how variants are indexed in the index, one of {@link #VARIANT_MODE_FLAT}, {@link #VARIANT_MODE_AGGREGATE}
+     * or {@link #VARIANT_MODE_NESTED}.
+     */
+    public static String getVariantMode(String indexName) {
+        String mode = UtilProperties.getPropertyValue(SOLR_CONFIG_NAME, "solr.index." + indexName + ".variant.mode");
+        if (UtilValidate.isEmpty(mode)) {
+            mode = UtilProperties.getPropertyValue(SOLR_CONFIG_NAME, "solr.index.variant.mode", VARIANT_MODE_FLAT);
+        }
+        if (VARIANT_MODE_AGGREGATE.equals(mode) || VARIANT_MODE_NESTED.equals(mode)) {
+            return mode;
+        }
+        return VARIANT_MODE_FLAT;
+    }
+
+    /**
+     * Returns the maximum number of variants attached to each virtual product of block join results.
+     */
+    public static int getVariantChildLimit() {
+        return UtilProperties.getPropertyAsInteger(SOLR_CONFIG_NAME, "solr.query.variant.child.limit", 100);
+    }
+
+    /**
+     * Returns true when the category navigation of the index is faceted on the <code>cat_tree</code> path field,
+     * see {@link CategoryFacetTree}.
+     */
+    public static boolean isHierarchicalCategoryFacets(String indexName) {
+        String mode = UtilProperties.getPropertyValue(SOLR_CONFIG_NAME, "solr.index." + indexName + ".category.facet.mode");
+        if (UtilValidate.isEmpty(mode)) {
+            mode = UtilProperties.getPropertyValue(SOLR_CONFIG_NAME, "solr.category.facet.mode", "trail");
+        }
+        return "hierarchical".equals(mode);
+    }
+
+    /**
+     * Returns true when category browsing of the index filters on the exact <code>categoryId</code> field rather than
+     * on wildcard queries over the <code>cat</code> trails.
+     */
+    public static boolean isCategoryFilterBrowse(String indexName) {
+        String mode = UtilProperties.getPropertyValue(SOLR_CONFIG_NAME, "solr.index." + indexName + ".browse.mode");
+        if (UtilValidate.isEmpty(mode)) {
+            mode = UtilProperties.getPropertyValue(SOLR_CONFIG_NAME, "solr.browse.mode", "filter");
+        }
+        return !"wildcard".equals(mode);
+    }
+
+    /**
+     * Returns the field category browsing is sorted on when the caller does not give one.
+     */
+    public static String getBrowseSortField() {
+        return UtilProperties.getPropertyValue(SOLR_CONFIG_NAME, "solr.browse.sort", "productId");
+    }
+
+    /**
+     * Asks for highlighted snippets of the fields, or of <code>solr.highlight.fields</code> when none are given,
+     * with the highlighter of <code>solr.highlight.method</code> and snippets bounded by the solr.highlight settings.
+     */
+    public static void applyHighlighting(SolrQuery solrQuery, String fields) {
+        String highlightFields = UtilValidate.isNotEmpty(fields) ? fields
+                : UtilProperties.getPropertyValue(SOLR_CONFIG_NAME, "solr.highlight.fields", "description_i18n_*");
+        solrQuery.setHighlight(true);
+        solrQuery.set("hl.method", UtilProperties.getPropertyValue(SOLR_CONFIG_NAME, "solr.highlight.method", "unified"));
+        for (String field : StringUtil.split(highlightFields, ",")) {
+            if (UtilValidate.isNotEmpty(field.trim())) {
+                solrQuery.addHighlightField(field.trim());
+            }
+        }
+        solrQuery.setHighlightSimplePre("<span class=\"highlight\">");
+        solrQuery.setHighlightSimplePost("</span>");
+        solrQuery.setHighlightSnippets(UtilProperties.getPropertyAsInteger(SOLR_CONFIG_NAME, "solr.highlight.snippets", 2));
+        solrQuery.setHighlightFragsize(UtilProperties.getPropertyAsInteger(SOLR_CONFIG_NAME, "solr.highlight.fragsize", 160));
+        solrQuery.set("hl.maxAnalyzedChars", UtilProperties.getPropertyAsInteger(SOLR_CONFIG_NAME, "solr.highlight.max.analyzed.chars", 10000));
+        // no leading text of the field for documents matching elsewhere
+        solrQuery.set("hl.defaultSummary", false);
+    }
+
+    /**
+     * Adds the titles and the codes, brands and part numbers, to the stored sources of the typeahead suggesters.
+     * The schema does not copy them, since atomic updates would copy the stored values once more.
+     */
+    public static void addSuggestFields(SolrInputDocument doc, Collection<?> titles, Collection<?> codes) {
+        Set<String> suggestTitles = new LinkedHashSet<>();
+        for (Object title : titles) {
+            if (title != null && UtilValidate.isNotEmpty(title.toString().trim())) {
+                String value = title.toString().trim();
+                suggestTitles.add(value.length() > SUGGEST_MAX_CHARS ? value.substring(0, SUGGEST_MAX_CHARS) : value);
+            }
+        }
+        Set<String> suggestCodes = new LinkedHashSet<>();
+        for (Object code : codes) {
+            if (code != null && UtilValidate.isNotEmpty(code.toString().trim())) {
+                suggestCodes.add(code.toString().trim());
+            }
+        }
+        for (String title : suggestTitles) {
+            doc.addField("suggest_title", title);
+        }
+        for (String code : suggestCodes) {
+            doc.addField("suggest_code", code);
+        }
+    }
+
+    /**
+     * Adds a cached filter query for each range, keyed by field name with "min,max" bounds where an empty side is
+     * open, ie price_JBR "10,50" or pkg_EA_weight ",2.5"; throws IllegalArgumentException on a bad field or bound.
+     */
+    public static void addRangeFilters(SolrQuery solrQuery, Map<String, String> rangeFilters) {
+        if (UtilValidate.isEmpty(rangeFilters)) {
+            return;
+        }
+        for (Map.Entry<String, String> entry : new TreeMap<>(rangeFilters).entrySet()) {
+            String field = entry.getKey();
+            if (field == null || !field.matches("[A-Za-z0-9_]+")) {
+                throw new IllegalArgumentException("Invalid range filter field " + field);
+            }
+            String range = entry.getValue() != null ? entry.getValue().trim() : "";
+            int comma = range.indexOf(',');
+            if (comma < 0 || range.indexOf(',', comma + 1) >= 0) {
+                throw new IllegalArgumentException("Invalid range " + range + " for field " + field + ", expected min,max");
+            }
+            String min = toRangeBound(range.substring(0, comma), field);
+            String max = toRangeBound(range.substring(comma + 1), field);
+            if ("*".equals(min) && "*".equals(max)) {
+                continue;
+            }
+            solrQuery.addFilterQuery(field + ":[" + min + " TO " + max + "]");
+        }
+    }
+
+    private static String toRangeBound(String bound, String field) {
+        if (UtilValidate.isEmpty(bound.trim()) || "*".equals(bound.trim())) {
+            return "*";
+        }
+        try {
+            return new BigDecimal(bound.trim()).toPlainString();
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid range bound " + bound + " for field " + field);
+        }
+    }
+
+    /**
+     * Returns a terms query matching any of the values in the field, separated by the first of comma, pipe,
+     * semicolon and the unit separator character none of the values contains, as the terms parser has no
+     * escaping. Values containing all of them are left out.
+     */
+    public static String makeTermsQuery(String field, Collection<String> values) {
+        String separator = TERMS_SEPARATORS[TERMS_SEPARATORS.length - 1];
+        for (String candidate : TERMS_SEPARATORS) {
+            boolean used = false;
+            for (String value : values) {
+                if (value.contains(candidate)) {
+                    used = true;
+                    break;
+                }
+            }
+            if (!used) {
+                separator = candidate;
+                break;
+            }
+        }
+        List<String> terms = new ArrayList<>();
+        for (String value : values) {
+            if (!value.contains(separator)) {
+                terms.add(value);
+            }
+        }
+        return "{!terms f=" + field + " separator='" + separator + "'}" + String.join(separator, terms);
+    }
+
+    /**
+     * Returns the field holding the GTINs of the documents of the index, or null when the index has none.
+     */
+    public static String getGtinField(String indexName) {
+        String field = UtilProperties.getPropertyValue(SOLR_CONFIG_NAME, "solr.index." + indexName + ".lookup.gtin.field");
+        if (UtilValidate.isEmpty(field)) {
+            field = UtilProperties.getPropertyValue(SOLR_CONFIG_NAME, "solr.lookup.gtin.field", "idValue");
+        }
+        return "none".equals(field.trim()) ? null : field.trim();
+    }
+
+    /**
+     * Returns the field list of a projection profile, <code>solr.fields.profile.[name]</code>, or all stored fields
+     * when the profile is not configured.
+     */
+    public static String getProfileFields(String profileName) {
+        String fields = UtilProperties.getPropertyValue(SOLR_CONFIG_NAME, "solr.fields.profile." + profileName);
+        if (UtilValidate.isEmpty(fields)) {
+            Debug.logWarning("Solr: Unknown field profile " + profileName + ", returning all fields", MODULE);
+            return "*";
+        }
+        return fields.replace(" ", "");
+    }
+
+    /**
+     * Returns the field list of the variants attached to block join results for a projection profile, or null for all.
+     */
+    public static String getProfileChildFields(String profileName) {
+        String fields = UtilProperties.getPropertyValue(SOLR_CONFIG_NAME, "solr.fields.profile." + profileName + ".child");
+        return UtilValidate.isNotEmpty(fields) ? fields.replace(" ", "") : null;
+    }
+
+    /**
+     * Returns the projection profile the storefront search services apply when the caller does not pick one.
+     */
+    public static String getDefaultFieldProfile() {
+        return UtilProperties.getPropertyValue(SOLR_CONFIG_NAME, "solr.fields.default.profile", "listing");
+    }
+
+    /**
+     * Runs the action once the current transaction has ended, whether committed or rolled back,
+     * or right away if there is none. Used to drop in-memory snapshots that may have been rebuilt
+     * from uncommitted data.
+     */
+    public static void afterTransaction(Runnable action) throws GenericTransactionException {
+        if (!TransactionUtil.isTransactionInPlace()) {
+            action.run();
+            return;
+        }
+        TransactionUtil.registerSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() { }
+
+            @Override
+            public void afterCompletion(int status) {
+                action.run();
+            }
+        });
+    }
+
+    /**
+     * Runs the action once the current transaction has committed, or right away if there is none.
+     * Nothing is run if the transaction is rolled back.
+     */
+    public static void afterCommit(Runnable action) throws GenericTransactionException {
+        if (!TransactionUtil.isTransactionInPlace()) {
+            action.run();
+            return;
+        }
+        TransactionUtil.registerSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() { }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED) {
+                    action.run();
+                }
+            }
+        });
+    }
+
     public static WebappInfo getSolrWebappInfo() {
         WebappInfo solrApp = null;
         try {
@@ -183,6 +486,22 @@ public final class SolrUtil {
             }
         }
 
+        // add category IDs
+        if (context.get("categoryIds") != null) {
+            List<String> categoryIds = UtilGenerics.cast(context.get("categoryIds"));
+            for (String categoryId : categoryIds) {
+                doc1.addField("categoryId", categoryId);
+            }
+        }
+
+        // add category paths
+        if (context.get("categoryTree") != null) {
+            List<String> categoryTree = UtilGenerics.cast(context.get("categoryTree"));
+            for (String path : categoryTree) {
+                doc1.addField("cat_tree", path);
+            }
+        }
+
         // add features
         if (context.get("features") != null) {
             Set<String> features = UtilGenerics.cast(context.get("features"));
@@ -203,14 +522,35 @@ public final class SolrUtil {
             }
         }
 
+        // add the feature values of the variants
+        if (context.get("variantFeatures") != null) {
+            List<String> variantFeatures = UtilGenerics.cast(context.get("variantFeatures"));
+            for (String variantFeature : variantFeatures) {
+                doc1.addField("variantFeatures", variantFeature);
+            }
+        }
+
+        // add the variants as child documents
+        if (context.get("variants") != null) {
+            List<Map<String, Object>> variants = UtilGenerics.cast(context.get("variants"));
+            for (Map<String, Object> variant : variants) {
+                doc1.addChildDocument(generateSolrDocument(variant));
+            }
+        }
+
         // add title
+        List<String> titles = new ArrayList<>();
         if (context.get("title") != null) {
             Map<String, String> title = UtilGenerics.cast(context.get("title"));
             for (Map.Entry<String, String> entry : title.entrySet()) {
                 doc1.addField("title_i18n_" + entry.getKey(), entry.getValue());
             }
+            titles.addAll(title.values());
         }
 
+        // typeahead sources
+        addSuggestFields(doc1, titles, UtilMisc.toList(context.get("productId"), context.get("manu")));
+
         // add short_description
         if (context.get("description") != null) {
             Map<String, String> description = UtilGenerics.cast(context.get("description"));
@@ -290,6 +630,50 @@ public final class SolrUtil {
         return result;
     }
 
+    /**
+     * Runs the facets of all side-deep menus of a category trail in one request. For each trail element the facet
+     * <code>menu[level]</code> holds the children of the element, counted over the products of the element only.
+     */
+    public static QueryResponse sideDeepCategoriesAvailable(String catalogId, List<String> trail, String solrIndexName)
+            throws IOException, SolrServerException {
+        SolrQuery solrQuery = new SolrQuery("*:*");
+        if (catalogId != null) {
+            solrQuery.setFilterQueries("catalog:" + catalogId);
+        }
+        solrQuery.setRows(0);
+        StringBuilder facets = new StringBuilder("{");
+        StringBuilder path = new StringBuilder();
+        for (int level = 0; level < trail.size(); level++) {
+            if (level > 0) {
+                path.append('/');
+                facets.append(',');
+            }
+            path.append(trail.get(level));
+            String categoryName = escapeJson(level + "/" + path);
+            String childPrefix = escapeJson((level + 1) + "/" + path + "/");
+            facets.append("menu").append(level).append(":{type:terms,field:cat,limit:-1,mincount:1,sort:index,prefix:\"")
+                    .append(childPrefix).append("\",domain:{filter:\"{!term f=cat}").append(categoryName).append("\"}}");
+        }
+        facets.append('}');
+        solrQuery.set("json.facet", facets.toString());
+        if (Debug.verboseOn()) {
+            Debug.logVerbose("solr: solrQuery: " + solrQuery, MODULE);
+        }
+        HttpSolrClient client = null;
+        try {
+            client = getHttpSolrClient(solrIndexName);
+            return client.query(solrQuery, METHOD.POST);
+        } finally {
+            if (client != null) {
+                client.close();
+            }
+        }
+    }
+
+    private static String escapeJson(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
     public static SolrUtil getInstance() {
         return new SolrUtil();
     }
@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.cache.UtilCache;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.ServiceUtil;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.response.Suggestion;
+
+/**
+ * Typeahead suggestions from the suggest component of the cores, without running a search.
+ * <p>
+ * Brand labels and part numbers come from the <code>codePrefix</code> FST suggester, matching from their first
+ * character, and product titles from the <code>titleInfix</code> suggester, matching any of their words. The
+ * suggestions of the hottest prefixes are kept in the <code>solr.suggest.prefixes</code> cache until the dictionaries
+ * are rebuilt by {@link #buildSuggesters}.
+ */
+public final class TypeaheadSuggester {
+
+    private static final String MODULE = TypeaheadSuggester.class.getName();
+    private static final String HANDLER = "/suggest";
+    private static final String[] DICTIONARIES = {"codePrefix", "titleInfix"};
+    private static final int MIN_LENGTH = UtilProperties.getPropertyAsInteger(SolrUtil.SOLR_CONFIG_NAME, "solr.suggest.min.length", 1);
+    private static final int MAX_COUNT = UtilProperties.getPropertyAsInteger(SolrUtil.SOLR_CONFIG_NAME, "solr.suggest.max.count", 20);
+    private static final UtilCache<String, List<String>> PREFIXES = UtilCache.createUtilCache("solr.suggest.prefixes",
+            UtilProperties.getPropertyAsInteger(SolrUtil.SOLR_CONFIG_NAME, "solr.suggest.cache.size", 5000),
+            UtilProperties.getPropertyAsLong(SolrUtil.SOLR_CONFIG_NAME, "solr.suggest.cache.expire", 600000));
+
+    private TypeaheadSuggester() { }
+
+    /**
+     * Returns up to count suggestions for what has been typed so far: brands and part numbers first, then titles.
+     */
+    public static Map<String, Object> suggest(DispatchContext dctx, Map<String, Object> context) {
+        String indexName = (String) context.get("indexName");
+        String term = normalize((String) context.get("term"));
+        int count = context.get("count") != null ? Math.min(Math.max(1, (Integer) context.get("count")), MAX_COUNT) : 10;
+        Map<String, Object> result = ServiceUtil.returnSuccess();
+        if (term.length() < MIN_LENGTH) {
+            result.put("suggestions", Collections.emptyList());
+            return result;
+        }
+        String key = indexName + "|" + count + "|" + term;
+        List<String> suggestions = PREFIXES.get(key);
+        if (suggestions == null) {
+            HttpSolrClient client = null;
+            try {
+                client = SolrUtil.getHttpSolrClient(indexName);
+                SolrQuery solrQuery = new SolrQuery();
+                solrQuery.setRequestHandler(HANDLER);
+                solrQuery.set("suggest.q", term);
+                solrQuery.set("suggest.count", count);
+                suggestions = merge(client.query(solrQuery), count);
+                PREFIXES.put(key, suggestions);
+            } catch (Exception e) {
+                Debug.logError(e, "Solr: Cannot get the suggestions of " + term + " from index " + indexName, MODULE);
+                return ServiceUtil.returnError(e.toString());
+            } finally {
+                if (client != null) {
+                    try {
+                        client.close();
+                    } catch (Exception e) {
+                        Debug.logError(e, MODULE);
+                    }
+                }
+            }
+        }
+        result.put("suggestions", suggestions);
+        return result;
+    }
+
+    private static String normalize(String term) {
+        return term != null ? term.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT) : "";
+    }
+
+    /**
+     * Returns the suggestions of the dictionaries in their order, without duplicates ignoring case.
+     */
+    private static List<String> merge(QueryResponse response, int count) {
+        List<String> suggestions = new ArrayList<>();
+        if (response.getSuggesterResponse() == null) {
+            return suggestions;
+        }
+        Map<String, List<Suggestion>> byDictionary = response.getSuggesterResponse().getSuggestions();
+        Set<String> seen = new HashSet<>();
+        for (String dictionary : DICTIONARIES) {
+            List<Suggestion> dictionarySuggestions = byDictionary.get(dictionary);
+            if (dictionarySuggestions == null) {
+                continue;
+            }
+            for (Suggestion suggestion : dictionarySuggestions) {
+                if (suggestions.size() >= count) {
+                    return suggestions;
+                }
+                if (seen.add(suggestion.getTerm().toLowerCase(Locale.ROOT))) {
+                    suggestions.add(suggestion.getTerm());
+                }
+            }
+        }
+        return suggestions;
+    }
+
+    /**
+     * Rebuilds the suggester dictionaries of the index from its stored documents and drops its cached prefixes;
+     * run after a full rebuild of the index or scheduled.
+     */
+    public static Map<String, Object> buildSuggesters(DispatchContext dctx, Map<String, Object> context) {
+        String indexName = (String) context.get("indexName");
+        HttpSolrClient client = null;
+        try {
+            client = SolrUtil.getHttpSolrClient(indexName);
+            SolrQuery solrQuery = new SolrQuery();
+            solrQuery.setRequestHandler(HANDLER);
+            solrQuery.set("suggest.buildAll", true);
+            long start = System.currentTimeMillis();
+            client.query(solrQuery);
+            Debug.logInfo("Solr: Built the suggesters of index " + indexName + " in " + (System.currentTimeMillis() - start) + " ms", MODULE);
+        } catch (Exception e) {
+            Debug.logError(e, "Solr: Cannot build the suggesters of index " + indexName, MODULE);
+            return ServiceUtil.returnError(e.toString());
+        } finally {
+            if (client != null) {
+                try {
+                    client.close();
+                } catch (Exception e) {
+                    Debug.logError(e, MODULE);
+                }
+            }
+        }
+        removePrefixes(indexName);
+        return ServiceUtil.returnSuccess();
+    }
+
+    private static void removePrefixes(String indexName) {
+        String prefix = indexName + "|";
+        for (String key : PREFIXES.getCacheLineKeys()) {
+            if (key.startsWith(prefix)) {
+                PREFIXES.remove(key);
+            }
+        }
+    }
+
+    public static void clear() {
+        PREFIXES.clear();
+    }
+}
@@ -0,0 +1,242 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr.indexing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.GenericServiceException;
+import org.apache.ofbiz.service.LocalDispatcher;
+import org.apache.ofbiz.service.ServiceUtil;
+import org.apache.ofbiz.solr.CategoryFacetTree;
+import org.apache.ofbiz.solr.CategoryTreeSnapshot;
+import org.apache.ofbiz.solr.CategoryUtil;
+import org.apache.ofbiz.solr.ProductUtil;
+import org.apache.ofbiz.solr.SolrUtil;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrInputDocument;
+
+/**
+ * Propagates category rollup and catalog changes to the indexed products below the changed category.
+ * <p>
+ * The descendants of the category are taken from the {@link CategoryTreeSnapshot}, their member products
+ * are loaded with one query per slice and only the <code>cat</code>, <code>cat_tree</code>, <code>categoryId</code>
+ * and <code>catalog</code> fields of the products already in the index are replaced with atomic updates.
+ * <p>
+ * When the variants of the index are not flat, an atomic update would rewrite a document outside of its block,
+ * so the products, or the virtual products of the variants, are re-indexed as whole documents instead.
+ */
+public final class CategoryImpactAnalyzer {
+
+    private static final String MODULE = CategoryImpactAnalyzer.class.getName();
+
+    private CategoryImpactAnalyzer() { }
+
+    /**
+     * Returns the IDs of the products that are members of the category or of any category below it.
+     */
+    public static Set<String> getImpactedProductIds(Delegator delegator, String productCategoryId) throws GenericEntityException {
+        Set<String> categoryIds = CategoryTreeSnapshot.get(delegator).getDescendantIds(productCategoryId);
+        Set<String> productIds = new LinkedHashSet<>();
+        for (GenericValue member : ProductBatchLoader.findIn(delegator, "ProductCategoryMember", "productCategoryId", categoryIds, null, false)) {
+            productIds.add(member.getString("productId"));
+        }
+        return productIds;
+    }
+
+    /**
+     * Schedules the reindexing of the products below the category of the changed ProductCategoryRollup or
+     * ProdCatalogCategory in instance attribute, once the transaction has committed - intended for use with ECAs.
+     */
+    public static Map<String, Object> propagateCategoryChange(DispatchContext dctx, Map<String, Object> context) {
+        GenericValue instance = (GenericValue) context.get("instance");
+        String productCategoryId = instance.getString("productCategoryId");
+        if (!SolrUtil.isSolrEcaEnabled()) {
+            if (Debug.verboseOn()) {
+                Debug.logVerbose("Solr: Solr ECA indexing disabled; skipping category impact of '" + productCategoryId + "'", MODULE);
+            }
+            return ServiceUtil.returnSuccess();
+        }
+        LocalDispatcher dispatcher = dctx.getDispatcher();
+        Map<String, Object> reindexContext = UtilMisc.toMap("productCategoryId", productCategoryId, "indexName", context.get("indexName"),
+                "userLogin", context.get("userLogin"));
+        try {
+            SolrUtil.afterCommit(() -> {
+                try {
+                    dispatcher.runAsync("reindexSolrCategoryImpact", reindexContext, false);
+                } catch (GenericServiceException e) {
+                    Debug.logError(e, "Solr: Cannot schedule the reindexing below category '" + productCategoryId + "'", MODULE);
+                }
+            });
+        } catch (GenericEntityException e) {
+            Debug.logError(e, e.getMessage(), MODULE);
+            return ServiceUtil.returnError(e.toString());
+        }
+        return ServiceUtil.returnSuccess();
+    }
+
+    /**
+     * Replaces the category trails and catalogs of the indexed products below a category.
+     */
+    public static Map<String, Object> reindexCategoryImpact(DispatchContext dctx, Map<String, Object> context) {
+        Delegator delegator = dctx.getDelegator();
+        String productCategoryId = (String) context.get("productCategoryId");
+        String solrIndexName = (String) context.get("indexName");
+        long productCount = 0;
+        long updatedCount = 0;
+        HttpSolrClient client = null;
+        try {
+            List<String> productIds = new ArrayList<>(getImpactedProductIds(delegator, productCategoryId));
+            productCount = productIds.size();
+            if (!productIds.isEmpty()) {
+                client = SolrUtil.getHttpSolrClient(solrIndexName);
+                boolean flat = SolrUtil.VARIANT_MODE_FLAT.equals(SolrUtil.getVariantMode(solrIndexName));
+                int batchSize = SolrUtil.getIndexBatchSize();
+                for (int start = 0; start < productIds.size(); start += batchSize) {
+                    List<String> chunk = productIds.subList(start, Math.min(start + batchSize, productIds.size()));
+                    updatedCount += flat ? updateChunk(delegator, client, chunk) : reindexChunk(dctx, client, chunk, context);
+                }
+                client.commit();
+            }
+        } catch (GenericEntityException | SolrServerException | IOException e) {
+            Debug.logError(e, "Solr: Cannot reindex the products below category '" + productCategoryId + "'", MODULE);
+            return ServiceUtil.returnError(e.toString());
+        } finally {
+            if (client != null) {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    Debug.logError(e, MODULE);
+                }
+            }
+        }
+        Debug.logInfo("Solr: Updated the categories of " + updatedCount + " of " + productCount + " products below category '"
+                + productCategoryId + "'", MODULE);
+        Map<String, Object> result = ServiceUtil.returnSuccess();
+        result.put("productCount", productCount);
+        result.put("updatedCount", updatedCount);
+        return result;
+    }
+
+    private static int updateChunk(Delegator delegator, HttpSolrClient client, List<String> productIds)
+            throws GenericEntityException, SolrServerException, IOException {
+        // atomic updates of missing documents would create partial ones, only update the indexed products
+        Set<String> indexedIds = getIndexedIds(client, productIds);
+        if (indexedIds.isEmpty()) {
+            return 0;
+        }
+        List<SolrInputDocument> docs = makeCategoryUpdates(delegator, indexedIds);
+        client.add(docs);
+        return docs.size();
+    }
+
+    /**
+     * Returns the atomic updates replacing the category and catalog fields of the products.
+     */
+    public static List<SolrInputDocument> makeCategoryUpdates(Delegator delegator, Collection<String> productIds)
+            throws GenericEntityException {
+        List<GenericValue> products = ProductBatchLoader.findIn(delegator, "Product", "productId", productIds, null, false);
+        ProductBatchLoader loader = new ProductBatchLoader(delegator, products);
+        loader.loadCategories();
+        loader.loadCatalogs();
+        List<SolrInputDocument> docs = new ArrayList<>();
+        for (GenericValue product : products) {
+            String productId = product.getString("productId");
+            SolrInputDocument doc = new SolrInputDocument();
+            doc.addField("productId", productId);
+            List<String> trails = loader.getCategoryTrails(productId);
+            doc.addField("cat", UtilMisc.toMap("set", trails));
+            doc.addField("cat_tree", UtilMisc.toMap("set", CategoryFacetTree.toPaths(trails)));
+            doc.addField("categoryId", UtilMisc.toMap("set", CategoryUtil.getCategoryIdsFromTrails(trails)));
+            doc.addField("catalog", UtilMisc.toMap("set", loader.getCatalogIds(productId)));
+            docs.add(doc);
+        }
+        return docs;
+    }
+
+    /**
+     * Re-indexes the whole documents of the products of the chunk, variants being replaced by their virtual product.
+     */
+    private static int reindexChunk(DispatchContext dctx, HttpSolrClient client, List<String> productIds, Map<String, Object> context)
+            throws GenericEntityException, SolrServerException, IOException {
+        Delegator delegator = dctx.getDelegator();
+        Set<String> topLevelIds = getTopLevelIds(delegator, productIds);
+        Set<String> indexedIds = topLevelIds.isEmpty() ? new HashSet<>() : getIndexedIds(client, new ArrayList<>(topLevelIds));
+        if (indexedIds.isEmpty()) {
+            return 0;
+        }
+        List<GenericValue> products = ProductBatchLoader.findIn(delegator, "Product", "productId", indexedIds, null, false);
+        Collection<SolrInputDocument> docs = new ArrayList<>();
+        for (Map<String, Object> productContent : ProductUtil.getProductContents(products, dctx, context)) {
+            docs.add(SolrUtil.generateSolrDocument(productContent));
+        }
+        client.add(docs);
+        return docs.size();
+    }
+
+    /**
+     * Returns the products whose whole documents hold the given products: the products themselves, variants being
+     * replaced by their virtual products.
+     */
+    public static Set<String> getTopLevelIds(Delegator delegator, Collection<String> productIds) throws GenericEntityException {
+        Set<String> topLevelIds = new LinkedHashSet<>();
+        List<String> variantIds = new ArrayList<>();
+        for (GenericValue product : ProductBatchLoader.findIn(delegator, "Product", "productId", productIds, null, false)) {
+            if ("Y".equals(product.getString("isVariant"))) {
+                variantIds.add(product.getString("productId"));
+            } else {
+                topLevelIds.add(product.getString("productId"));
+            }
+        }
+        if (!variantIds.isEmpty()) {
+            EntityCondition variantAssoc = EntityCondition.makeCondition("productAssocTypeId", "PRODUCT_VARIANT");
+            for (GenericValue assoc : ProductBatchLoader.findIn(delegator, "ProductAssoc", "productIdTo", variantIds, variantAssoc, true)) {
+                topLevelIds.add(assoc.getString("productId"));
+            }
+        }
+        return topLevelIds;
+    }
+
+    private static Set<String> getIndexedIds(HttpSolrClient client, List<String> productIds) throws SolrServerException, IOException {
+        SolrQuery query = new SolrQuery(SolrUtil.makeTermsQuery("productId", productIds));
+        query.setFields("productId");
+        query.setRows(productIds.size());
+        Set<String> indexedIds = new HashSet<>();
+        for (SolrDocument document : client.query(query).getResults()) {
+            indexedIds.add((String) document.getFieldValue("productId"));
+        }
+        return indexedIds;
+    }
+}
@@ -0,0 +1,60 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr.indexing;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.ofbiz.base.util.GeneralException;
+import org.apache.ofbiz.entity.GenericValue;
+
+/**
+ * A stage of the {@link EnrichmentPipeline} adding fields to the solr documents of products.
+ * <p>
+ * Implementations are shared by all indexing threads and must keep their per chunk state in the
+ * {@link EnrichmentContext}. Custom stages are registered with a <code>solr.enricher.[name]</code>
+ * property holding the class name and need a public no argument constructor.
+ */
+public interface DocumentEnricher {
+
+    /**
+     * Returns the name used in the <code>solr.index.*.enrichers</code> properties and in the statistics.
+     */
+    String getName();
+
+    /**
+     * Returns the names of the stages that must have run before this one.
+     */
+    default List<String> getDependencies() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Loads whatever the stage needs for all products of the chunk, once per chunk.
+     */
+    default void prefetch(EnrichmentContext context) throws GeneralException {
+    }
+
+    /**
+     * Adds the fields of the stage for one product. Only the given field map may be written,
+     * the fields of other stages are merged by the pipeline.
+     */
+    void enrich(GenericValue product, Map<String, Object> fields, EnrichmentContext context) throws GeneralException;
+}
@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr.indexing;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import org.apache.ofbiz.base.util.UtilGenerics;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.LocalDispatcher;
+import org.apache.ofbiz.solr.SolrUtil;
+
+/**
+ * State shared by the enricher stages while a chunk of products is indexed.
+ */
+public final class EnrichmentContext {
+
+    private final DispatchContext dctx;
+    private final Map<String, Object> serviceContext;
+    private final String indexName;
+    private final List<GenericValue> products;
+    private final Locale locale;
+    private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+
+    public EnrichmentContext(DispatchContext dctx, Map<String, Object> serviceContext, String indexName, List<GenericValue> products) {
+        this.dctx = dctx;
+        this.serviceContext = serviceContext;
+        this.indexName = indexName;
+        this.products = products;
+        Locale locale = (Locale) serviceContext.get("locale");
+        this.locale = locale != null ? locale : SolrUtil.getIndexLocales().get(0);
+    }
+
+    public DispatchContext getDispatchContext() {
+        return dctx;
+    }
+
+    public Delegator getDelegator() {
+        return dctx.getDelegator();
+    }
+
+    public LocalDispatcher getDispatcher() {
+        return dctx.getDispatcher();
+    }
+
+    public String getIndexName() {
+        return indexName;
+    }
+
+    /**
+     * Returns the products of the chunk.
+     */
+    public List<GenericValue> getProducts() {
+        return products;
+    }
+
+    public Locale getLocale() {
+        return locale;
+    }
+
+    public GenericValue getUserLogin() {
+        return (GenericValue) serviceContext.get("userLogin");
+    }
+
+    public <T> T getAttribute(String name) {
+        return UtilGenerics.cast(attributes.get(name));
+    }
+
+    public void setAttribute(String name, Object value) {
+        attributes.put(name, value);
+    }
+
+    /**
+     * Returns the attribute, creating it once if missing, ie for state shared by several stages.
+     */
+    public <T> T getOrCreateAttribute(String name, Function<EnrichmentContext, T> factory) {
+        return UtilGenerics.cast(attributes.computeIfAbsent(name, k -> factory.apply(this)));
+    }
+
+    /**
+     * Returns the batch loader of the chunk, the sections are loaded by the stages needing them.
+     */
+    public ProductBatchLoader getBatchLoader() {
+        return getOrCreateAttribute("batchLoader", ctx -> new ProductBatchLoader(ctx.getDelegator(), ctx.getProducts()));
+    }
+}
@@ -0,0 +1,314 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr.indexing;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.StringUtil;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.ServiceUtil;
+import org.apache.ofbiz.solr.SolrUtil;
+
+/**
+ * Ordered pipeline of {@link DocumentEnricher} stages building the solr documents of products.
+ * <p>
+ * The stages of an index are configured with <code>solr.index.[indexName].enrichers</code> (falling back to
+ * <code>solr.index.enrichers</code>) minus <code>solr.index.[indexName].enrichers.disabled</code>. They are
+ * grouped in waves by their dependencies; when <code>solr.index.enrich.threads</code> is positive the stages
+ * of a wave run concurrently for the callers asking for it. Each stage has its own timing and error counters,
+ * see {@link #getStats()}.
+ * <p>
+ * Concurrent stages query on pool threads, outside of the transaction of the caller: they do not see its
+ * uncommitted changes and may wait on its locks. Only a full rebuild, which changes nothing, runs them
+ * concurrently; the entity ECAs indexing a change build its documents in their own thread.
+ */
+public final class EnrichmentPipeline {
+
+    private static final String MODULE = EnrichmentPipeline.class.getName();
+    private static final String DEFAULT_ENRICHERS = "basic,category,catalog,features,inventory,content,pricing,variants";
+    private static final Map<String, EnrichmentPipeline> PIPELINES = new ConcurrentHashMap<>();
+    private static final Map<String, StageStats> STATS = new ConcurrentHashMap<>();
+    private static final int THREADS = UtilProperties.getPropertyAsInteger(SolrUtil.SOLR_CONFIG_NAME, "solr.index.enrich.threads", 0);
+    private static final ExecutorService EXECUTOR = THREADS > 0 ? createExecutor(THREADS) : null;
+
+    private final String indexName;
+    private final List<List<DocumentEnricher>> waves;
+
+    private EnrichmentPipeline(String indexName, List<List<DocumentEnricher>> waves) {
+        this.indexName = indexName;
+        this.waves = waves;
+    }
+
+    /**
+     * Returns the pipeline configured for the index.
+     */
+    public static EnrichmentPipeline forIndex(String indexName) {
+        return PIPELINES.computeIfAbsent(indexName, EnrichmentPipeline::create);
+    }
+
+    private static EnrichmentPipeline create(String indexName) {
+        String names = UtilProperties.getPropertyValue(SolrUtil.SOLR_CONFIG_NAME, "solr.index." + indexName + ".enrichers");
+        if (UtilValidate.isEmpty(names)) {
+            names = UtilProperties.getPropertyValue(SolrUtil.SOLR_CONFIG_NAME, "solr.index.enrichers", DEFAULT_ENRICHERS);
+        }
+        Set<String> disabled = splitNames(UtilProperties.getPropertyValue(SolrUtil.SOLR_CONFIG_NAME,
+                "solr.index." + indexName + ".enrichers.disabled", ""));
+        Map<String, DocumentEnricher> builtIns = ProductEnrichers.getBuiltIns();
+        Map<String, DocumentEnricher> enrichers = new LinkedHashMap<>();
+        for (String name : splitNames(names)) {
+            if (disabled.contains(name)) {
+                continue;
+            }
+            DocumentEnricher enricher = builtIns.containsKey(name) ? builtIns.get(name) : loadEnricher(name);
+            if (enricher != null) {
+                enrichers.put(name, enricher);
+            }
+        }
+
+        // group the stages in waves, each wave only depending on the previous ones
+        List<List<DocumentEnricher>> waves = new ArrayList<>();
+        Set<String> done = new HashSet<>();
+        Map<String, DocumentEnricher> pending = new LinkedHashMap<>(enrichers);
+        while (!pending.isEmpty()) {
+            List<DocumentEnricher> wave = new ArrayList<>();
+            for (DocumentEnricher enricher : pending.values()) {
+                if (done.containsAll(enricher.getDependencies())) {
+                    wave.add(enricher);
+                }
+            }
+            if (wave.isEmpty()) {
+                Debug.logWarning("Solr: Skipping enrichers " + pending.keySet() + " of index " + indexName
+                        + ", their dependencies are not configured", MODULE);
+                break;
+            }
+            for (DocumentEnricher enricher : wave) {
+                pending.remove(enricher.getName());
+                done.add(enricher.getName());
+            }
+            waves.add(wave);
+        }
+        Debug.logInfo("Solr: Enrichers of index " + indexName + ": " + done, MODULE);
+        return new EnrichmentPipeline(indexName, waves);
+    }
+
+    private static Set<String> splitNames(String names) {
+        Set<String> result = new LinkedHashSet<>();
+        if (UtilValidate.isNotEmpty(names)) {
+            for (String name : StringUtil.split(names, ",")) {
+                if (UtilValidate.isNotEmpty(name.trim())) {
+                    result.add(name.trim());
+                }
+            }
+        }
+        return result;
+    }
+
+    private static DocumentEnricher loadEnricher(String name) {
+        String className = UtilProperties.getPropertyValue(SolrUtil.SOLR_CONFIG_NAME, "solr.enricher." + name);
+        if (UtilValidate.isEmpty(className)) {
+            Debug.logWarning("Solr: Unknown enricher " + name + ", define its class with solr.enricher." + name, MODULE);
+            return null;
+        }
+        try {
+            Class<?> enricherClass = Thread.currentThread().getContextClassLoader().loadClass(className);
+            return (DocumentEnricher) enricherClass.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            Debug.logError(e, "Solr: Cannot create enricher " + name + " from class " + className, MODULE);
+            return null;
+        }
+    }
+
+    private static ExecutorService createExecutor(int threads) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "solr-enrich-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Builds the document fields of a chunk of products, in the order of the products, in the calling thread.
+     */
+    public List<Map<String, Object>> run(List<GenericValue> products, DispatchContext dctx, Map<String, Object> serviceContext) {
+        return run(products, dctx, serviceContext, false);
+    }
+
+    /**
+     * Builds the document fields of a chunk of products, in the order of the products. The stages of a wave run
+     * concurrently if asked and <code>solr.index.enrich.threads</code> is positive, which is only safe when the
+     * transaction of the caller holds no changes the documents depend on.
+     */
+    public List<Map<String, Object>> run(List<GenericValue> products, DispatchContext dctx, Map<String, Object> serviceContext,
+            boolean concurrent) {
+        ExecutorService executor = concurrent ? EXECUTOR : null;
+        EnrichmentContext context = new EnrichmentContext(dctx, serviceContext, indexName, products);
+        for (List<DocumentEnricher> wave : waves) {
+            runWave(executor, wave, enricher -> {
+                StageStats stats = getStageStats(enricher);
+                long start = System.nanoTime();
+                try {
+                    enricher.prefetch(context);
+                } catch (Exception e) {
+                    stats.errors.increment();
+                    Debug.logError(e, "Solr: Enricher " + enricher.getName() + " cannot prefetch " + products.size() + " products", MODULE);
+                }
+                stats.prefetchCount.increment();
+                stats.prefetchNanos.add(System.nanoTime() - start);
+                return null;
+            });
+        }
+
+        List<Map<String, Object>> documents = new ArrayList<>();
+        for (GenericValue product : products) {
+            String productId = product.getString("productId");
+            if (productId == null) {
+                documents.add(new HashMap<>());
+                continue;
+            }
+            Map<String, Object> document = new HashMap<>();
+            document.put("productId", productId);
+            for (List<DocumentEnricher> wave : waves) {
+                for (Map<String, Object> fields : runWave(executor, wave, enricher -> enrich(enricher, product, context))) {
+                    document.putAll(fields);
+                }
+            }
+            documents.add(document);
+        }
+        return documents;
+    }
+
+    private Map<String, Object> enrich(DocumentEnricher enricher, GenericValue product, EnrichmentContext context) {
+        StageStats stats = getStageStats(enricher);
+        Map<String, Object> fields = new HashMap<>();
+        long start = System.nanoTime();
+        try {
+            enricher.enrich(product, fields, context);
+        } catch (Exception e) {
+            stats.errors.increment();
+            fields.clear();
+            Debug.logError(e, "Solr: Enricher " + enricher.getName() + " failed for productId '" + product.getString("productId") + "'", MODULE);
+        }
+        stats.enrichCount.increment();
+        stats.enrichNanos.add(System.nanoTime() - start);
+        return fields;
+    }
+
+    private interface Stage<T> {
+        T run(DocumentEnricher enricher);
+    }
+
+    /**
+     * Runs a stage task for each enricher of the wave, concurrently if an executor is given.
+     */
+    private static <T> List<T> runWave(ExecutorService executor, List<DocumentEnricher> wave, Stage<T> stage) {
+        List<T> results = new ArrayList<>(wave.size());
+        if (executor == null || wave.size() == 1) {
+            for (DocumentEnricher enricher : wave) {
+                results.add(stage.run(enricher));
+            }
+            return results;
+        }
+        List<Future<T>> futures = new ArrayList<>(wave.size());
+        for (DocumentEnricher enricher : wave) {
+            futures.add(executor.submit(() -> stage.run(enricher)));
+        }
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Solr: Interrupted while enriching documents", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Solr: Enricher failed", e.getCause());
+            }
+        }
+        return results;
+    }
+
+    private StageStats getStageStats(DocumentEnricher enricher) {
+        return STATS.computeIfAbsent(indexName + "/" + enricher.getName(), k -> new StageStats());
+    }
+
+    /**
+     * Returns the counters of every stage keyed by <code>[indexName]/[stage]</code>.
+     */
+    public static Map<String, Map<String, Object>> getStats() {
+        Map<String, Map<String, Object>> stats = new TreeMap<>();
+        for (Map.Entry<String, StageStats> entry : STATS.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().toMap());
+        }
+        return stats;
+    }
+
+    public static void resetStats() {
+        STATS.clear();
+    }
+
+    /**
+     * Returns the enrichment stage statistics.
+     */
+    public static Map<String, Object> getIndexingStats(DispatchContext dctx, Map<String, Object> context) {
+        Map<String, Object> result = ServiceUtil.returnSuccess();
+        result.put("stages", getStats());
+        if (Boolean.TRUE.equals(context.get("reset"))) {
+            resetStats();
+        }
+        return result;
+    }
+
+    private static final class StageStats {
+        private final LongAdder prefetchCount = new LongAdder();
+        private final LongAdder prefetchNanos = new LongAdder();
+        private final LongAdder enrichCount = new LongAdder();
+        private final LongAdder enrichNanos = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+
+        private Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            long enrichCalls = enrichCount.sum();
+            map.put("prefetchCount", prefetchCount.sum());
+            map.put("prefetchMillis", prefetchNanos.sum() / 1000000);
+            map.put("enrichCount", enrichCalls);
+            map.put("enrichMillis", enrichNanos.sum() / 1000000);
+            map.put("enrichAverageMicros", enrichCalls > 0 ? enrichNanos.sum() / enrichCalls / 1000 : 0);
+            map.put("errorCount", errors.sum());
+            return map;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr.indexing;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.base.util.cache.UtilCache;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.entity.model.DynamicViewEntity;
+import org.apache.ofbiz.entity.util.EntityListIterator;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.ServiceUtil;
+import org.apache.ofbiz.solr.SolrUtil;
+
+/**
+ * Computes the available to promise totals of products with one grouped query on <code>InventoryItem</code>.
+ * <p>
+ * Aggregated totals are kept in an expiring cache so that the indexer reads the totals of known products
+ * from memory and only queries the missing ones. The <code>InventoryItemDetail</code> entity ECA drops the
+ * total of the product once the transaction creating the detail commits, and bumps its generation: a total
+ * loaded before that commit is not stored, as it may not include the detail. Other instances do not see the
+ * ECA and serve their totals until they expire.
+ */
+public final class InventoryAtpAggregator {
+
+    private static final String MODULE = InventoryAtpAggregator.class.getName();
+    private static final UtilCache<String, BigDecimal> RUNNING_ATP = UtilCache.createUtilCache("solr.inventory.atp",
+            UtilProperties.getPropertyAsInteger(SolrUtil.SOLR_CONFIG_NAME, "solr.inventory.atp.size", 0),
+            UtilProperties.getPropertyAsLong(SolrUtil.SOLR_CONFIG_NAME, "solr.inventory.atp.expire", 300000));
+    private static final Map<String, Long> GENERATIONS = new ConcurrentHashMap<>();
+
+    private InventoryAtpAggregator() { }
+
+    /**
+     * Returns the available to promise totals of the given products, products without inventory are left out.
+     */
+    public static Map<String, BigDecimal> getAvailableToPromise(Delegator delegator, Collection<String> productIds)
+            throws GenericEntityException {
+        Map<String, BigDecimal> totals = new HashMap<>();
+        List<String> missingIds = new ArrayList<>();
+        for (String productId : productIds) {
+            BigDecimal total = RUNNING_ATP.get(productId);
+            if (total != null) {
+                totals.put(productId, total);
+            } else {
+                missingIds.add(productId);
+            }
+        }
+        if (!missingIds.isEmpty()) {
+            Map<String, Long> generations = new HashMap<>();
+            for (String productId : missingIds) {
+                generations.put(productId, getGeneration(productId));
+            }
+            Map<String, BigDecimal> loaded = aggregate(delegator, missingIds);
+            for (Map.Entry<String, BigDecimal> entry : loaded.entrySet()) {
+                store(entry.getKey(), entry.getValue(), generations.get(entry.getKey()));
+                totals.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * Returns the generation of the total of a product, to be read before querying the total.
+     */
+    public static long getGeneration(String productId) {
+        return GENERATIONS.getOrDefault(productId, 0L);
+    }
+
+    /**
+     * Stores the total of a product queried at the given generation, unless the product changed since; returns
+     * whether it was stored.
+     */
+    public static boolean store(String productId, BigDecimal total, long generation) {
+        if (getGeneration(productId) != generation) {
+            return false;
+        }
+        RUNNING_ATP.put(productId, total);
+        // a change committed between the check and the put has already removed the entry, drop the stale total
+        if (getGeneration(productId) != generation) {
+            RUNNING_ATP.remove(productId);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the stored total of a product, or null if not known.
+     */
+    public static BigDecimal getStoredTotal(String productId) {
+        return RUNNING_ATP.get(productId);
+    }
+
+    /**
+     * Drops the total of a product and bumps its generation, so that totals queried before are not stored.
+     */
+    public static void invalidate(String productId) {
+        if (productId != null) {
+            GENERATIONS.merge(productId, 1L, Long::sum);
+            RUNNING_ATP.remove(productId);
+        }
+    }
+
+    /**
+     * Sums the available to promise totals of the given products, one grouped query per slice of product IDs.
+     */
+    public static Map<String, BigDecimal> aggregate(Delegator delegator, Collection<String> productIds) throws GenericEntityException {
+        Map<String, BigDecimal> totals = new HashMap<>();
+        if (UtilValidate.isEmpty(productIds)) {
+            return totals;
+        }
+        List<String> idList = new ArrayList<>(productIds);
+        for (int start = 0; start < idList.size(); start += ProductBatchLoader.MAX_IN_SIZE) {
+            List<String> slice = idList.subList(start, Math.min(start + ProductBatchLoader.MAX_IN_SIZE, idList.size()));
+            collect(delegator, EntityCondition.makeCondition("productId", EntityOperator.IN, slice), totals);
+        }
+        return totals;
+    }
+
+    /**
+     * Sums the available to promise totals of the whole catalog with one grouped query and replaces the stored totals.
+     */
+    public static Map<String, BigDecimal> aggregateAll(Delegator delegator) throws GenericEntityException {
+        Map<String, Long> generations = new HashMap<>(GENERATIONS);
+        Map<String, BigDecimal> totals = new HashMap<>();
+        collect(delegator, null, totals);
+        RUNNING_ATP.clear();
+        for (Map.Entry<String, BigDecimal> entry : totals.entrySet()) {
+            store(entry.getKey(), entry.getValue(), generations.getOrDefault(entry.getKey(), 0L));
+        }
+        if (Debug.infoOn()) {
+            Debug.logInfo("Solr: Aggregated available to promise totals of " + totals.size() + " products", MODULE);
+        }
+        return totals;
+    }
+
+    public static void clear() {
+        RUNNING_ATP.clear();
+    }
+
+    private static void collect(Delegator delegator, EntityCondition condition, Map<String, BigDecimal> totals)
+            throws GenericEntityException {
+        DynamicViewEntity dve = new DynamicViewEntity();
+        dve.addMemberEntity("II", "InventoryItem");
+        dve.addAlias("II", "productId", null, null, null, Boolean.TRUE, null);
+        dve.addAlias("II", "availableToPromiseTotal", null, null, null, null, "sum");
+        EntityQuery query = EntityQuery.use(delegator).select("productId", "availableToPromiseTotal").from(dve);
+        if (condition != null) {
+            query.where(condition);
+        }
+        try (EntityListIterator rows = query.queryIterator()) {
+            GenericValue row;
+            while ((row = rows.next()) != null) {
+                BigDecimal total = row.getBigDecimal("availableToPromiseTotal");
+                if (row.get("productId") != null && total != null) {
+                    totals.put(row.getString("productId"), total);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the stored total of the product of the created InventoryItemDetail in the instance attribute after
+     * commit, to be queried again on next use - intended for use with ECAs.
+     */
+    public static Map<String, Object> updateRunningAtp(DispatchContext dctx, Map<String, Object> context) {
+        GenericValue detail = (GenericValue) context.get("instance");
+        BigDecimal availableToPromiseDiff = detail.getBigDecimal("availableToPromiseDiff");
+        if (availableToPromiseDiff == null || availableToPromiseDiff.signum() == 0) {
+            return ServiceUtil.returnSuccess();
+        }
+        try {
+            GenericValue inventoryItem = EntityQuery.use(dctx.getDelegator()).from("InventoryItem")
+                    .where("inventoryItemId", detail.get("inventoryItemId")).cache().queryOne();
+            if (inventoryItem == null) {
+                return ServiceUtil.returnSuccess();
+            }
+            String productId = inventoryItem.getString("productId");
+            SolrUtil.afterCommit(() -> invalidate(productId));
+        } catch (GenericEntityException e) {
+            Debug.logError(e, e.getMessage(), MODULE);
+            return ServiceUtil.returnError(e.toString());
+        }
+        return ServiceUtil.returnSuccess();
+    }
+
+    /**
+     * Reloads the running totals of the whole catalog, to be scheduled if inventory is also changed outside of the ECAs.
+     */
+    public static Map<String, Object> refreshRunningAtp(DispatchContext dctx, Map<String, Object> context) {
+        try {
+            Map<String, Object> result = ServiceUtil.returnSuccess();
+            result.put("productCount", (long) aggregateAll(dctx.getDelegator()).size());
+            return result;
+        } catch (GenericEntityException e) {
+            Debug.logError(e, e.getMessage(), MODULE);
+            return ServiceUtil.returnError(e.toString());
+        }
+    }
+}
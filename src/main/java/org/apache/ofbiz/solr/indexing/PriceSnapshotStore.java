@@ -0,0 +1,284 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr.indexing;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.GeneralException;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.cache.UtilCache;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.entity.transaction.GenericTransactionException;
+import org.apache.ofbiz.entity.util.EntityListIterator;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.product.config.ProductConfigWrapper;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.LocalDispatcher;
+import org.apache.ofbiz.service.ServiceUtil;
+import org.apache.ofbiz.solr.SolrUtil;
+
+/**
+ * Keeps the list and default prices indexed for each product, so that the price rules are only
+ * evaluated once per product instead of on every index operation.
+ * <p>
+ * Snapshots are computed on first access and dropped by the <code>ProductPrice</code> and price rule
+ * entity ECAs, see <code>entitydef/eecas.xml</code>. Each drop bumps the generation of the product, a
+ * snapshot computed before is not stored as it may hold the old prices.
+ */
+public final class PriceSnapshotStore {
+
+    private static final String MODULE = PriceSnapshotStore.class.getName();
+    private static final UtilCache<String, PriceSnapshot> SNAPSHOTS = UtilCache.createUtilCache("solr.price.snapshot",
+            UtilProperties.getPropertyAsInteger(SolrUtil.SOLR_CONFIG_NAME, "solr.price.snapshot.size", 0),
+            UtilProperties.getPropertyAsLong(SolrUtil.SOLR_CONFIG_NAME, "solr.price.snapshot.expire", 3600000));
+    private static final Map<String, Long> GENERATIONS = new ConcurrentHashMap<>();
+    private static final AtomicLong CLEAR_GENERATION = new AtomicLong();
+
+    private PriceSnapshotStore() { }
+
+    /**
+     * Prices of a product as they are indexed, already scaled to two decimals.
+     */
+    public static final class PriceSnapshot {
+        private final String listPrice;
+        private final String defaultPrice;
+
+        public PriceSnapshot(BigDecimal listPrice, BigDecimal defaultPrice) {
+            this.listPrice = listPrice != null ? listPrice.setScale(2, RoundingMode.HALF_DOWN).toString() : null;
+            this.defaultPrice = defaultPrice != null ? defaultPrice.setScale(2, RoundingMode.HALF_DOWN).toString() : null;
+        }
+
+        public String getListPrice() {
+            return listPrice;
+        }
+
+        public String getDefaultPrice() {
+            return defaultPrice;
+        }
+    }
+
+    /**
+     * Returns the price snapshot of the product, computing and storing it if missing.
+     */
+    public static PriceSnapshot getSnapshot(GenericValue product, DispatchContext dctx, Locale locale, GenericValue userLogin)
+            throws GeneralException {
+        String productId = product.getString("productId");
+        PriceSnapshot snapshot = SNAPSHOTS.get(productId);
+        if (snapshot == null) {
+            long generation = getGeneration(productId);
+            snapshot = computeSnapshot(product, dctx, locale, userLogin);
+            store(productId, snapshot, generation);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns the generation of the snapshot of a product, to be read before computing the snapshot.
+     */
+    public static long getGeneration(String productId) {
+        // both only grow, so the sum changes whenever either does
+        return CLEAR_GENERATION.get() + GENERATIONS.getOrDefault(productId, 0L);
+    }
+
+    /**
+     * Stores the snapshot of a product computed at the given generation, unless it was dropped since; returns
+     * whether it was stored.
+     */
+    public static boolean store(String productId, PriceSnapshot snapshot, long generation) {
+        if (getGeneration(productId) != generation) {
+            return false;
+        }
+        SNAPSHOTS.put(productId, snapshot);
+        // a drop between the check and the put has already removed the entry, drop the old snapshot
+        if (getGeneration(productId) != generation) {
+            SNAPSHOTS.remove(productId);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the stored snapshot of a product, or null if not known.
+     */
+    public static PriceSnapshot getStoredSnapshot(String productId) {
+        return SNAPSHOTS.get(productId);
+    }
+
+    /**
+     * Evaluates the prices of the product, through the product configuration for aggregated products
+     * and the <code>calculateProductPrice</code> service for all others.
+     */
+    public static PriceSnapshot computeSnapshot(GenericValue product, DispatchContext dctx, Locale locale, GenericValue userLogin)
+            throws GeneralException {
+        Delegator delegator = dctx.getDelegator();
+        LocalDispatcher dispatcher = dctx.getDispatcher();
+        String productId = product.getString("productId");
+        if ("AGGREGATED".equals(product.getString("productTypeId"))) {
+            ProductConfigWrapper configWrapper = new ProductConfigWrapper(delegator, dispatcher, productId, null,
+                    null, null, null, locale, userLogin);
+            BigDecimal totalListPrice = configWrapper.getTotalListPrice();
+            return new PriceSnapshot(totalListPrice, totalListPrice);
+        }
+        Map<String, Object> priceMap = dispatcher.runSync("calculateProductPrice", UtilMisc.toMap("product", product));
+        if (ServiceUtil.isError(priceMap)) {
+            throw new GeneralException(ServiceUtil.getErrorMessage(priceMap));
+        }
+        return new PriceSnapshot((BigDecimal) priceMap.get("listPrice"), (BigDecimal) priceMap.get("defaultPrice"));
+    }
+
+    /**
+     * Drops the snapshot of a product.
+     */
+    public static void invalidate(String productId) {
+        if (productId != null) {
+            GENERATIONS.merge(productId, 1L, Long::sum);
+            SNAPSHOTS.remove(productId);
+        }
+    }
+
+    /**
+     * Drops all snapshots, ie when a price rule changed.
+     */
+    public static void clear() {
+        CLEAR_GENERATION.incrementAndGet();
+        SNAPSHOTS.clear();
+    }
+
+    public static long size() {
+        return SNAPSHOTS.size();
+    }
+
+    /**
+     * Returns the product and the products whose prices depend on its prices: its variants which inherit them,
+     * the virtual products it is a variant of which are priced from their variants, and the aggregated products
+     * it is a configuration option of.
+     */
+    public static Set<String> getDependentProductIds(Delegator delegator, String productId) throws GenericEntityException {
+        Set<String> productIds = new LinkedHashSet<>();
+        productIds.add(productId);
+        for (GenericValue assoc : EntityQuery.use(delegator).select("productIdTo").from("ProductAssoc")
+                .where("productId", productId, "productAssocTypeId", "PRODUCT_VARIANT").queryList()) {
+            productIds.add(assoc.getString("productIdTo"));
+        }
+        for (GenericValue assoc : EntityQuery.use(delegator).select("productId").from("ProductAssoc")
+                .where("productIdTo", productId, "productAssocTypeId", "PRODUCT_VARIANT").queryList()) {
+            productIds.add(assoc.getString("productId"));
+        }
+        Set<String> configItemIds = new LinkedHashSet<>();
+        for (GenericValue configProduct : EntityQuery.use(delegator).select("configItemId").from("ProductConfigProduct")
+                .where("productId", productId).queryList()) {
+            configItemIds.add(configProduct.getString("configItemId"));
+        }
+        if (!configItemIds.isEmpty()) {
+            for (GenericValue config : EntityQuery.use(delegator).select("productId").from("ProductConfig")
+                    .where(EntityCondition.makeCondition("configItemId", EntityOperator.IN, configItemIds)).queryList()) {
+                productIds.add(config.getString("productId"));
+            }
+        }
+        return productIds;
+    }
+
+    /**
+     * Drops the snapshots of the product denoted by the productId field of the instance attribute and of the
+     * products whose prices depend on it, see {@link #getDependentProductIds(Delegator, String)}, once the
+     * transaction is over - intended for use with ECAs/SECAs. Dropping them before the commit would let a
+     * concurrent indexer compute and store the old prices again.
+     */
+    public static Map<String, Object> invalidatePriceSnapshot(DispatchContext dctx, Map<String, Object> context) {
+        GenericValue instance = (GenericValue) context.get("instance");
+        String productId = (String) context.get("productId");
+        if (productId == null && instance != null && instance.getModelEntity().isField("productId")) {
+            productId = instance.getString("productId");
+        }
+        try {
+            if (productId == null) {
+                SolrUtil.afterTransaction(PriceSnapshotStore::clear);
+                return ServiceUtil.returnSuccess();
+            }
+            Set<String> productIds = getDependentProductIds(dctx.getDelegator(), productId);
+            SolrUtil.afterTransaction(() -> productIds.forEach(PriceSnapshotStore::invalidate));
+        } catch (GenericEntityException e) {
+            Debug.logWarning(e, "Solr: Cannot find the products depending on productId '" + productId + "', dropping all price snapshots",
+                    MODULE);
+            clear();
+        }
+        return ServiceUtil.returnSuccess();
+    }
+
+    /**
+     * Drops all snapshots once the transaction is over - intended for use with ECAs on the price rule entities.
+     */
+    public static Map<String, Object> clearPriceSnapshots(DispatchContext dctx, Map<String, Object> context) {
+        try {
+            SolrUtil.afterTransaction(PriceSnapshotStore::clear);
+        } catch (GenericTransactionException e) {
+            Debug.logWarning(e, MODULE);
+            clear();
+        }
+        return ServiceUtil.returnSuccess();
+    }
+
+    /**
+     * Recomputes the snapshots of all products, to be scheduled before a full index rebuild.
+     */
+    public static Map<String, Object> refreshPriceSnapshots(DispatchContext dctx, Map<String, Object> context) {
+        Locale locale = (Locale) context.get("locale");
+        if (locale == null) {
+            locale = SolrUtil.getIndexLocales().get(0);
+        }
+        GenericValue userLogin = (GenericValue) context.get("userLogin");
+        long refreshed = 0;
+        long failed = 0;
+        try (EntityListIterator products = EntityQuery.use(dctx.getDelegator()).from("Product").queryIterator()) {
+            GenericValue product;
+            while ((product = products.next()) != null) {
+                try {
+                    long generation = getGeneration(product.getString("productId"));
+                    store(product.getString("productId"), computeSnapshot(product, dctx, locale, userLogin), generation);
+                    refreshed++;
+                } catch (GeneralException e) {
+                    Debug.logWarning(e, "Solr: Cannot compute the prices of productId '" + product.getString("productId") + "'", MODULE);
+                    invalidate(product.getString("productId"));
+                    failed++;
+                }
+            }
+        } catch (GenericEntityException e) {
+            Debug.logError(e, e.getMessage(), MODULE);
+            return ServiceUtil.returnError(e.toString());
+        }
+        Debug.logInfo("Solr: Refreshed " + refreshed + " price snapshots, " + failed + " failed", MODULE);
+        Map<String, Object> result = ServiceUtil.returnSuccess();
+        result.put("refreshed", refreshed);
+        result.put("failed", failed);
+        return result;
+    }
+}
@@ -0,0 +1,237 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr.indexing;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.solr.CatalogMembershipIndex;
+import org.apache.ofbiz.solr.CategoryTreeSnapshot;
+
+/**
+ * Prefetches the entities needed to build the solr documents of a chunk of products.
+ * <p>
+ * Each related entity type is loaded with one IN-query for the whole chunk and kept
+ * in lookup maps, so that assembling the documents does not hit the database again.
+ */
+public final class ProductBatchLoader {
+
+    private static final String MODULE = ProductBatchLoader.class.getName();
+    /** Upper bound of values in a single IN condition, most databases reject longer lists. */
+    static final int MAX_IN_SIZE = 1000;
+
+    private final Delegator delegator;
+    private final List<String> productIds = new ArrayList<>();
+    private final Map<String, List<String>> categoryIdsByProductId = new HashMap<>();
+    private final Map<String, List<String>> trailsByProductId = new HashMap<>();
+    private final Map<String, List<String>> catalogIdsByCategoryId = new HashMap<>();
+    private final Map<String, Set<String>> featureTypeIdsByProductId = new HashMap<>();
+    private final Map<String, BigDecimal> availableToPromiseByProductId = new HashMap<>();
+
+    public ProductBatchLoader(Delegator delegator, Collection<GenericValue> products) {
+        this.delegator = delegator;
+        for (GenericValue product : products) {
+            productIds.add(product.getString("productId"));
+        }
+    }
+
+    /**
+     * Loads all sections for the chunk.
+     */
+    public void load() throws GenericEntityException {
+        loadCategories();
+        loadCatalogs();
+        loadFeatures();
+        loadInventory();
+    }
+
+    /**
+     * Loads the category memberships of the chunk and computes the level/trail strings of each product
+     * from the {@link CategoryTreeSnapshot}.
+     */
+    public void loadCategories() throws GenericEntityException {
+        List<GenericValue> members = findIn("ProductCategoryMember", "productId", productIds, null, false);
+        for (GenericValue member : members) {
+            String productCategoryId = member.getString("productCategoryId");
+            List<String> categoryIds = categoryIdsByProductId.computeIfAbsent(member.getString("productId"), k -> new ArrayList<>());
+            if (!categoryIds.contains(productCategoryId)) {
+                categoryIds.add(productCategoryId);
+            }
+        }
+
+        CategoryTreeSnapshot categoryTree = CategoryTreeSnapshot.get(delegator);
+        for (Map.Entry<String, List<String>> entry : categoryIdsByProductId.entrySet()) {
+            List<String> trails = new ArrayList<>();
+            for (String productCategoryId : entry.getValue()) {
+                for (String trailMember : categoryTree.getTrailMembers(productCategoryId)) {
+                    if (!trails.contains(trailMember)) {
+                        trails.add(trailMember);
+                    }
+                }
+            }
+            trailsByProductId.put(entry.getKey(), trails);
+        }
+    }
+
+    /**
+     * Looks up the catalogs of the top categories of all trails of the chunk in the {@link CatalogMembershipIndex}.
+     * <p>
+     * Requires {@link #loadCategories()} to have been run.
+     */
+    public void loadCatalogs() throws GenericEntityException {
+        CatalogMembershipIndex catalogIndex = CatalogMembershipIndex.get(delegator);
+        for (List<String> trails : trailsByProductId.values()) {
+            for (String trail : trails) {
+                String topCategoryId = getTopCategoryId(trail);
+                catalogIdsByCategoryId.computeIfAbsent(topCategoryId, catalogIndex::getCatalogIds);
+            }
+        }
+    }
+
+    /**
+     * Loads the selectable feature types of the chunk, same as the getProductFeatureSet service.
+     */
+    public void loadFeatures() throws GenericEntityException {
+        EntityCondition applType = EntityCondition.makeCondition("productFeatureApplTypeId", "SELECTABLE_FEATURE");
+        List<GenericValue> features = findIn("ProductFeatureAndAppl", "productId", productIds, applType, true,
+                "sequenceNum", "productFeatureTypeId");
+        for (GenericValue feature : features) {
+            featureTypeIdsByProductId.computeIfAbsent(feature.getString("productId"), k -> new LinkedHashSet<>())
+                    .add(feature.getString("productFeatureTypeId"));
+        }
+    }
+
+    /**
+     * Loads the available to promise totals of the chunk through the {@link InventoryAtpAggregator}.
+     */
+    public void loadInventory() throws GenericEntityException {
+        availableToPromiseByProductId.putAll(InventoryAtpAggregator.getAvailableToPromise(delegator, productIds));
+    }
+
+    /**
+     * Returns the level/trail strings of the product, ie "0/TOP", "1/TOP/CHILD".
+     */
+    public List<String> getCategoryTrails(String productId) {
+        return trailsByProductId.getOrDefault(productId, Collections.emptyList());
+    }
+
+    /**
+     * Returns the catalogs the categories of the product belong to, without duplicates.
+     */
+    public List<String> getCatalogIds(String productId) {
+        List<String> catalogs = new ArrayList<>();
+        for (String trail : getCategoryTrails(productId)) {
+            for (String catalogId : catalogIdsByCategoryId.getOrDefault(getTopCategoryId(trail), Collections.emptyList())) {
+                if (!catalogs.contains(catalogId)) {
+                    catalogs.add(catalogId);
+                }
+            }
+        }
+        return catalogs;
+    }
+
+    public Set<String> getFeatureTypeIds(String productId) {
+        return featureTypeIdsByProductId.getOrDefault(productId, Collections.emptySet());
+    }
+
+    /**
+     * Returns the available to promise total of the product, or <code>null</code> if it has no inventory.
+     */
+    public BigDecimal getAvailableToPromise(String productId) {
+        return availableToPromiseByProductId.get(productId);
+    }
+
+    /**
+     * Adds every prefix of the given trails as level/trail string, skipping already present ones.
+     */
+    public static void addTrailMembers(List<List<String>> trailElements, List<String> trails) {
+        for (List<String> trailElement : trailElements) {
+            StringBuilder catMember = new StringBuilder();
+            int i = 0;
+            for (String trailString : trailElement) {
+                if (catMember.length() > 0) {
+                    catMember.append("/");
+                    i++;
+                }
+                catMember.append(trailString);
+                String cm = i + "/" + catMember.toString();
+                if (!trails.contains(cm)) {
+                    trails.add(cm);
+                }
+            }
+        }
+    }
+
+    private static String getTopCategoryId(String trail) {
+        String[] trailElements = trail.split("/");
+        return trailElements.length > 1 ? trailElements[1] : trail;
+    }
+
+    private List<GenericValue> findIn(String entityName, String fieldName, Collection<String> values, EntityCondition extraCondition,
+            boolean filterByDate, String... orderBy) throws GenericEntityException {
+        return findIn(delegator, entityName, fieldName, values, extraCondition, filterByDate, orderBy);
+    }
+
+    /**
+     * Runs the IN-query in slices of {@link #MAX_IN_SIZE} values and returns the concatenated results.
+     */
+    static List<GenericValue> findIn(Delegator delegator, String entityName, String fieldName, Collection<String> values,
+            EntityCondition extraCondition, boolean filterByDate, String... orderBy) throws GenericEntityException {
+        List<GenericValue> result = new ArrayList<>();
+        if (UtilValidate.isEmpty(values)) {
+            return result;
+        }
+        List<String> valueList = new ArrayList<>(values);
+        for (int start = 0; start < valueList.size(); start += MAX_IN_SIZE) {
+            List<String> slice = valueList.subList(start, Math.min(start + MAX_IN_SIZE, valueList.size()));
+            List<EntityCondition> conditions = new ArrayList<>();
+            conditions.add(EntityCondition.makeCondition(fieldName, EntityOperator.IN, slice));
+            if (extraCondition != null) {
+                conditions.add(extraCondition);
+            }
+            EntityQuery query = EntityQuery.use(delegator).from(entityName).where(conditions);
+            if (orderBy.length > 0) {
+                query.orderBy(orderBy);
+            }
+            if (filterByDate) {
+                query.filterByDate();
+            }
+            result.addAll(query.queryList());
+        }
+        if (Debug.verboseOn()) {
+            Debug.logVerbose("Solr: Prefetched " + result.size() + " " + entityName + " rows for " + values.size() + " keys", MODULE);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,231 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr.indexing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilCodec;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.product.product.ProductContentWrapper;
+import org.apache.ofbiz.service.LocalDispatcher;
+
+/**
+ * Extracts the localized product names and descriptions of a chunk of products in one pass.
+ * <p>
+ * All <code>ProductContent</code>, alternate locale <code>ContentAssoc</code>, <code>Content</code>,
+ * <code>DataResource</code> and <code>ElectronicText</code> rows of the chunk are loaded with one query
+ * per entity, then fanned out to the configured locales. The resolution follows
+ * {@link ProductContentWrapper}: a non empty Product field wins, variants fall back to their virtual
+ * product, and the alternate locale content with the longest matching locale is preferred.
+ * Contents that need rendering (templates, non text data resources) are still delegated to the wrapper.
+ */
+public final class ProductContentExtractor {
+
+    private static final String MODULE = ProductContentExtractor.class.getName();
+    /** Indexed product content types and the Product fields taking precedence over them. */
+    private static final Map<String, String> PRODUCT_FIELDS = UtilMisc.toMap("PRODUCT_NAME", "productName",
+            "DESCRIPTION", "description", "LONG_DESCRIPTION", "longDescription");
+    private static final UtilCodec.SimpleEncoder HTML_ENCODER = UtilCodec.getEncoder("html");
+
+    private final Delegator delegator;
+    private final LocalDispatcher dispatcher;
+    private final List<Locale> locales;
+    private final Map<String, GenericValue> productsById = new LinkedHashMap<>();
+    private final Map<String, GenericValue> parentsByVariantId = new HashMap<>();
+    private final Map<String, String> contentIdsByProductContentType = new HashMap<>();
+    private final Map<String, List<String>> alternateIdsByContentId = new HashMap<>();
+    private final Map<String, GenericValue> contentsById = new HashMap<>();
+    private final Map<String, GenericValue> dataResourcesById = new HashMap<>();
+    private final Map<String, String> textsByDataResourceId = new HashMap<>();
+
+    public ProductContentExtractor(Delegator delegator, LocalDispatcher dispatcher, Collection<GenericValue> products, List<Locale> locales) {
+        this.delegator = delegator;
+        this.dispatcher = dispatcher;
+        this.locales = locales;
+        for (GenericValue product : products) {
+            productsById.put(product.getString("productId"), product);
+        }
+    }
+
+    /**
+     * Loads the content rows of all products of the chunk and of the virtual products of its variants.
+     */
+    public void load() throws GenericEntityException {
+        List<String> variantIds = new ArrayList<>();
+        for (GenericValue product : productsById.values()) {
+            if ("Y".equals(product.getString("isVariant"))) {
+                variantIds.add(product.getString("productId"));
+            }
+        }
+        Map<String, String> parentIdsByVariantId = new HashMap<>();
+        EntityCondition variantAssoc = EntityCondition.makeCondition("productAssocTypeId", "PRODUCT_VARIANT");
+        for (GenericValue assoc : ProductBatchLoader.findIn(delegator, "ProductAssoc", "productIdTo", variantIds, variantAssoc, true)) {
+            parentIdsByVariantId.putIfAbsent(assoc.getString("productIdTo"), assoc.getString("productId"));
+        }
+        Map<String, GenericValue> parentsById = new HashMap<>();
+        for (GenericValue parent : ProductBatchLoader.findIn(delegator, "Product", "productId", parentIdsByVariantId.values(), null, false)) {
+            parentsById.put(parent.getString("productId"), parent);
+        }
+        for (Map.Entry<String, String> entry : parentIdsByVariantId.entrySet()) {
+            GenericValue parent = parentsById.get(entry.getValue());
+            if (parent != null) {
+                parentsByVariantId.put(entry.getKey(), parent);
+            }
+        }
+
+        Set<String> productIds = new LinkedHashSet<>(productsById.keySet());
+        productIds.addAll(parentsById.keySet());
+        EntityCondition contentTypes = EntityCondition.makeCondition("productContentTypeId", EntityOperator.IN,
+                new ArrayList<>(PRODUCT_FIELDS.keySet()));
+        List<GenericValue> productContents = ProductBatchLoader.findIn(delegator, "ProductContent", "productId", productIds, contentTypes,
+                true, "-fromDate");
+        for (GenericValue productContent : productContents) {
+            contentIdsByProductContentType.putIfAbsent(getKey(productContent.getString("productId"),
+                    productContent.getString("productContentTypeId")), productContent.getString("contentId"));
+        }
+
+        Set<String> contentIds = new LinkedHashSet<>(contentIdsByProductContentType.values());
+        EntityCondition alternateLocale = EntityCondition.makeCondition("contentAssocTypeId", "ALTERNATE_LOCALE");
+        for (GenericValue contentAssoc : ProductBatchLoader.findIn(delegator, "ContentAssoc", "contentId", contentIds, alternateLocale,
+                true, "-fromDate")) {
+            alternateIdsByContentId.computeIfAbsent(contentAssoc.getString("contentId"), k -> new ArrayList<>())
+                    .add(contentAssoc.getString("contentIdTo"));
+            contentIds.add(contentAssoc.getString("contentIdTo"));
+        }
+
+        Set<String> dataResourceIds = new LinkedHashSet<>();
+        for (GenericValue content : ProductBatchLoader.findIn(delegator, "Content", "contentId", contentIds, null, false)) {
+            contentsById.put(content.getString("contentId"), content);
+            if (content.get("dataResourceId") != null) {
+                dataResourceIds.add(content.getString("dataResourceId"));
+            }
+        }
+        for (GenericValue dataResource : ProductBatchLoader.findIn(delegator, "DataResource", "dataResourceId", dataResourceIds, null, false)) {
+            dataResourcesById.put(dataResource.getString("dataResourceId"), dataResource);
+        }
+        for (GenericValue electronicText : ProductBatchLoader.findIn(delegator, "ElectronicText", "dataResourceId", dataResourceIds, null,
+                false)) {
+            textsByDataResourceId.put(electronicText.getString("dataResourceId"), electronicText.getString("textData"));
+        }
+    }
+
+    /**
+     * Returns the html encoded texts of the given content type keyed by locale, only non empty ones are returned.
+     */
+    public Map<String, String> getTexts(String productId, String productContentTypeId) {
+        Map<String, String> texts = new HashMap<>();
+        GenericValue product = productsById.get(productId);
+        if (product == null) {
+            return texts;
+        }
+        for (Locale locale : locales) {
+            String text = getText(product, productContentTypeId, locale);
+            if (UtilValidate.isNotEmpty(text)) {
+                texts.put(locale.toString(), text);
+            }
+        }
+        return texts;
+    }
+
+    private String getText(GenericValue product, String productContentTypeId, Locale locale) {
+        String productId = product.getString("productId");
+        GenericValue parent = parentsByVariantId.get(productId);
+        String fieldName = PRODUCT_FIELDS.get(productContentTypeId);
+        if (fieldName != null) {
+            if (UtilValidate.isNotEmpty(product.getString(fieldName))) {
+                return encode(product.getString(fieldName));
+            }
+            if (parent != null && UtilValidate.isNotEmpty(parent.getString(fieldName))) {
+                return encode(parent.getString(fieldName));
+            }
+        }
+        String contentId = contentIdsByProductContentType.get(getKey(productId, productContentTypeId));
+        if (contentId == null && parent != null) {
+            contentId = contentIdsByProductContentType.get(getKey(parent.getString("productId"), productContentTypeId));
+        }
+        GenericValue content = contentId != null ? getLocalizedContent(contentId, locale) : null;
+        if (content == null) {
+            return null;
+        }
+        GenericValue dataResource = dataResourcesById.get(content.getString("dataResourceId"));
+        if (dataResource == null) {
+            return null;
+        }
+        String dataTemplateTypeId = dataResource.getString("dataTemplateTypeId");
+        if (UtilValidate.isEmpty(dataTemplateTypeId) || "NONE".equals(dataTemplateTypeId)) {
+            String dataResourceTypeId = dataResource.getString("dataResourceTypeId");
+            if ("ELECTRONIC_TEXT".equals(dataResourceTypeId)) {
+                return encode(textsByDataResourceId.get(dataResource.getString("dataResourceId")));
+            } else if ("SHORT_TEXT".equals(dataResourceTypeId)) {
+                return encode(dataResource.getString("objectInfo"));
+            }
+        }
+        // needs the content rendering of the wrapper
+        if (Debug.verboseOn()) {
+            Debug.logVerbose("Solr: Rendering " + productContentTypeId + " content of productId '" + productId + "' with the wrapper", MODULE);
+        }
+        return new ProductContentWrapper(dispatcher, product, locale, null).get(productContentTypeId, "html").toString();
+    }
+
+    /**
+     * Returns the alternate locale content whose locale is the longest prefix of the target locale,
+     * or the content itself when none matches.
+     */
+    private GenericValue getLocalizedContent(String contentId, Locale locale) {
+        GenericValue content = contentsById.get(contentId);
+        String targetLocaleString = locale.toString();
+        int matchedLength = 0;
+        if (content != null && UtilValidate.isNotEmpty(content.getString("localeString"))
+                && targetLocaleString.startsWith(content.getString("localeString"))) {
+            matchedLength = content.getString("localeString").length();
+        }
+        for (String alternateId : alternateIdsByContentId.getOrDefault(contentId, new ArrayList<>())) {
+            GenericValue alternate = contentsById.get(alternateId);
+            String localeString = alternate != null ? alternate.getString("localeString") : null;
+            if (UtilValidate.isNotEmpty(localeString) && targetLocaleString.startsWith(localeString) && localeString.length() > matchedLength) {
+                content = alternate;
+                matchedLength = localeString.length();
+            }
+        }
+        return content;
+    }
+
+    private static String encode(String text) {
+        return text != null ? HTML_ENCODER.encode(text) : null;
+    }
+
+    private static String getKey(String productId, String productContentTypeId) {
+        return productId + "::" + productContentTypeId;
+    }
+}
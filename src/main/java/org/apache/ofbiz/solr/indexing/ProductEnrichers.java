@@ -0,0 +1,378 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr.indexing;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.ofbiz.base.util.GeneralException;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.product.product.ProductWorker;
+import org.apache.ofbiz.solr.CategoryFacetTree;
+import org.apache.ofbiz.solr.CategoryUtil;
+import org.apache.ofbiz.solr.SolrUtil;
+import org.apache.ofbiz.solr.indexing.PriceSnapshotStore.PriceSnapshot;
+
+/**
+ * Built-in enricher stages of the product documents.
+ */
+public final class ProductEnrichers {
+
+    private ProductEnrichers() { }
+
+    /**
+     * Returns the built-in stages keyed by name, in their default order.
+     */
+    public static Map<String, DocumentEnricher> getBuiltIns() {
+        Map<String, DocumentEnricher> enrichers = new LinkedHashMap<>();
+        for (DocumentEnricher enricher : UtilMisc.toList(new BasicEnricher(), new CategoryEnricher(), new CatalogEnricher(),
+                new FeatureEnricher(), new InventoryEnricher(), new ContentEnricher(), new PricingEnricher(), new VariantEnricher())) {
+            enrichers.put(enricher.getName(), enricher);
+        }
+        return enrichers;
+    }
+
+    /**
+     * Product fields, images and the virtual/digital/physical flags.
+     */
+    public static final class BasicEnricher implements DocumentEnricher {
+        @Override
+        public String getName() {
+            return "basic";
+        }
+
+        @Override
+        public void enrich(GenericValue product, Map<String, Object> fields, EnrichmentContext context) {
+            if (product.get("internalName") != null) {
+                fields.put("internalName", product.get("internalName"));
+            }
+            String smallImage = product.getString("smallImageUrl");
+            if (smallImage != null) {
+                fields.put("smallImage", smallImage);
+            }
+            String mediumImage = product.getString("mediumImageUrl");
+            if (mediumImage != null) {
+                fields.put("mediumImage", mediumImage);
+            }
+            String largeImage = product.getString("largeImageUrl");
+            if (largeImage != null) {
+                fields.put("largeImage", largeImage);
+            }
+            if ("Y".equals(product.getString("isVirtual"))) {
+                fields.put("isVirtual", Boolean.TRUE);
+            }
+            if (ProductWorker.isDigital(product)) {
+                fields.put("isDigital", Boolean.TRUE);
+            }
+            if (ProductWorker.isPhysical(product)) {
+                fields.put("isPhysical", Boolean.TRUE);
+            }
+        }
+    }
+
+    /**
+     * Level/trail strings of the categories of the product, their paths for hierarchical faceting and their IDs for browsing.
+     */
+    public static final class CategoryEnricher implements DocumentEnricher {
+        @Override
+        public String getName() {
+            return "category";
+        }
+
+        @Override
+        public void prefetch(EnrichmentContext context) throws GeneralException {
+            context.getBatchLoader().loadCategories();
+        }
+
+        @Override
+        public void enrich(GenericValue product, Map<String, Object> fields, EnrichmentContext context) {
+            List<String> trails = context.getBatchLoader().getCategoryTrails(product.getString("productId"));
+            fields.put("category", trails);
+            fields.put("categoryTree", CategoryFacetTree.toPaths(trails));
+            fields.put("categoryIds", CategoryUtil.getCategoryIdsFromTrails(trails));
+        }
+    }
+
+    /**
+     * Catalogs the top categories of the product belong to.
+     */
+    public static final class CatalogEnricher implements DocumentEnricher {
+        @Override
+        public String getName() {
+            return "catalog";
+        }
+
+        @Override
+        public List<String> getDependencies() {
+            return UtilMisc.toList("category");
+        }
+
+        @Override
+        public void prefetch(EnrichmentContext context) throws GeneralException {
+            context.getBatchLoader().loadCatalogs();
+        }
+
+        @Override
+        public void enrich(GenericValue product, Map<String, Object> fields, EnrichmentContext context) {
+            fields.put("catalog", context.getBatchLoader().getCatalogIds(product.getString("productId")));
+        }
+    }
+
+    /**
+     * Selectable feature types of the product.
+     */
+    public static final class FeatureEnricher implements DocumentEnricher {
+        @Override
+        public String getName() {
+            return "features";
+        }
+
+        @Override
+        public void prefetch(EnrichmentContext context) throws GeneralException {
+            context.getBatchLoader().loadFeatures();
+        }
+
+        @Override
+        public void enrich(GenericValue product, Map<String, Object> fields, EnrichmentContext context) {
+            fields.put("features", context.getBatchLoader().getFeatureTypeIds(product.getString("productId")));
+        }
+    }
+
+    /**
+     * Available to promise total of the product.
+     */
+    public static final class InventoryEnricher implements DocumentEnricher {
+        @Override
+        public String getName() {
+            return "inventory";
+        }
+
+        @Override
+        public void prefetch(EnrichmentContext context) throws GeneralException {
+            context.getBatchLoader().loadInventory();
+        }
+
+        @Override
+        public void enrich(GenericValue product, Map<String, Object> fields, EnrichmentContext context) {
+            String inStock = null;
+            BigDecimal availableToPromiseTotal = context.getBatchLoader().getAvailableToPromise(product.getString("productId"));
+            if (availableToPromiseTotal != null) {
+                inStock = availableToPromiseTotal.toBigInteger().toString();
+            }
+            fields.put("inStock", inStock);
+        }
+    }
+
+    /**
+     * Localized names and descriptions of the product.
+     */
+    public static final class ContentEnricher implements DocumentEnricher {
+        @Override
+        public String getName() {
+            return "content";
+        }
+
+        @Override
+        public void prefetch(EnrichmentContext context) throws GeneralException {
+            getExtractor(context).load();
+        }
+
+        @Override
+        public void enrich(GenericValue product, Map<String, Object> fields, EnrichmentContext context) {
+            ProductContentExtractor extractor = getExtractor(context);
+            String productId = product.getString("productId");
+            fields.put("title", extractor.getTexts(productId, "PRODUCT_NAME"));
+            fields.put("description", extractor.getTexts(productId, "DESCRIPTION"));
+            fields.put("longDescription", extractor.getTexts(productId, "LONG_DESCRIPTION"));
+        }
+
+        private static ProductContentExtractor getExtractor(EnrichmentContext context) {
+            return context.getOrCreateAttribute("contentExtractor", ctx -> new ProductContentExtractor(ctx.getDelegator(),
+                    ctx.getDispatcher(), ctx.getProducts(), SolrUtil.getIndexLocales()));
+        }
+    }
+
+    /**
+     * List and default prices of the product, read from the {@link PriceSnapshotStore}.
+     */
+    public static final class PricingEnricher implements DocumentEnricher {
+        @Override
+        public String getName() {
+            return "pricing";
+        }
+
+        @Override
+        public void enrich(GenericValue product, Map<String, Object> fields, EnrichmentContext context) throws GeneralException {
+            PriceSnapshot prices = PriceSnapshotStore.getSnapshot(product, context.getDispatchContext(), context.getLocale(),
+                    context.getUserLogin());
+            if (prices.getListPrice() != null) {
+                fields.put("listPrice", prices.getListPrice());
+            }
+            if (prices.getDefaultPrice() != null) {
+                fields.put("defaultPrice", prices.getDefaultPrice());
+            }
+        }
+    }
+
+    /**
+     * Variant relations of the product according to the variant mode of the index.
+     * <p>
+     * Every document gets a <code>docType</code> and a <code>parentProductId</code>, the virtual product itself for
+     * virtual and standalone products, so that results can be collapsed on it. In <code>aggregate</code> and
+     * <code>nested</code> mode virtual products also get the price range, feature values and stock sum of their
+     * variants, and in <code>nested</code> mode the variants themselves as child documents.
+     */
+    public static final class VariantEnricher implements DocumentEnricher {
+        private static final List<String> VARIANT_FEATURE_TYPES = UtilMisc.toList("STANDARD_FEATURE", "DISTINGUISHING_FEATURE");
+
+        @Override
+        public String getName() {
+            return "variants";
+        }
+
+        @Override
+        public void prefetch(EnrichmentContext context) throws GeneralException {
+            Delegator delegator = context.getDelegator();
+            List<String> virtualIds = new ArrayList<>();
+            List<String> variantIds = new ArrayList<>();
+            for (GenericValue product : context.getProducts()) {
+                if ("Y".equals(product.getString("isVirtual"))) {
+                    virtualIds.add(product.getString("productId"));
+                }
+                if ("Y".equals(product.getString("isVariant"))) {
+                    variantIds.add(product.getString("productId"));
+                }
+            }
+            EntityCondition variantAssoc = EntityCondition.makeCondition("productAssocTypeId", "PRODUCT_VARIANT");
+            Map<String, String> parentIdsByVariantId = new HashMap<>();
+            for (GenericValue assoc : ProductBatchLoader.findIn(delegator, "ProductAssoc", "productIdTo", variantIds, variantAssoc, true)) {
+                parentIdsByVariantId.putIfAbsent(assoc.getString("productIdTo"), assoc.getString("productId"));
+            }
+            context.setAttribute("variantParentIds", parentIdsByVariantId);
+            if (SolrUtil.VARIANT_MODE_FLAT.equals(SolrUtil.getVariantMode(context.getIndexName()))) {
+                return;
+            }
+
+            Map<String, List<String>> variantIdsByVirtualId = new HashMap<>();
+            for (GenericValue assoc : ProductBatchLoader.findIn(delegator, "ProductAssoc", "productId", virtualIds, variantAssoc, true,
+                    "sequenceNum")) {
+                variantIdsByVirtualId.computeIfAbsent(assoc.getString("productId"), k -> new ArrayList<>()).add(assoc.getString("productIdTo"));
+            }
+            Set<String> allVariantIds = new LinkedHashSet<>();
+            for (List<String> ids : variantIdsByVirtualId.values()) {
+                allVariantIds.addAll(ids);
+            }
+            Map<String, GenericValue> variantsById = new HashMap<>();
+            for (GenericValue variant : ProductBatchLoader.findIn(delegator, "Product", "productId", allVariantIds, null, false)) {
+                variantsById.put(variant.getString("productId"), variant);
+            }
+            Map<String, Set<String>> featuresByVariantId = new HashMap<>();
+            EntityCondition featureTypes = EntityCondition.makeCondition("productFeatureApplTypeId", EntityOperator.IN, VARIANT_FEATURE_TYPES);
+            for (GenericValue feature : ProductBatchLoader.findIn(delegator, "ProductFeatureAndAppl", "productId", allVariantIds,
+                    featureTypes, true, "sequenceNum")) {
+                String description = feature.getString("description");
+                featuresByVariantId.computeIfAbsent(feature.getString("productId"), k -> new LinkedHashSet<>())
+                        .add(UtilValidate.isNotEmpty(description) ? description : feature.getString("productFeatureId"));
+            }
+            Map<String, BigDecimal> stockByVariantId = InventoryAtpAggregator.getAvailableToPromise(delegator, allVariantIds);
+            context.setAttribute("variantsById", variantsById);
+            context.setAttribute("variantFeatures", featuresByVariantId);
+            context.setAttribute("variantStock", stockByVariantId);
+            context.setAttribute("variantIdsByVirtualId", variantIdsByVirtualId);
+        }
+
+        @Override
+        public void enrich(GenericValue product, Map<String, Object> fields, EnrichmentContext context) throws GeneralException {
+            String productId = product.getString("productId");
+            Map<String, String> parentIdsByVariantId = context.getAttribute("variantParentIds");
+            String parentProductId = parentIdsByVariantId != null ? parentIdsByVariantId.get(productId) : null;
+            fields.put("docType", parentProductId != null ? SolrUtil.DOC_TYPE_VARIANT : SolrUtil.DOC_TYPE_PRODUCT);
+            fields.put("parentProductId", parentProductId != null ? parentProductId : productId);
+
+            Map<String, List<String>> variantIdsByVirtualId = context.getAttribute("variantIdsByVirtualId");
+            if (variantIdsByVirtualId == null || !variantIdsByVirtualId.containsKey(productId)) {
+                return;
+            }
+            Map<String, GenericValue> variantsById = context.getAttribute("variantsById");
+            Map<String, Set<String>> featuresByVariantId = context.getAttribute("variantFeatures");
+            Map<String, BigDecimal> stockByVariantId = context.getAttribute("variantStock");
+            boolean nested = SolrUtil.VARIANT_MODE_NESTED.equals(SolrUtil.getVariantMode(context.getIndexName()));
+            BigDecimal priceMin = null;
+            BigDecimal priceMax = null;
+            BigDecimal stock = BigDecimal.ZERO;
+            int variantCount = 0;
+            Set<String> features = new LinkedHashSet<>();
+            List<Map<String, Object>> children = new ArrayList<>();
+            for (String variantId : variantIdsByVirtualId.get(productId)) {
+                GenericValue variant = variantsById.get(variantId);
+                if (variant == null) {
+                    continue;
+                }
+                variantCount++;
+                PriceSnapshot prices = PriceSnapshotStore.getSnapshot(variant, context.getDispatchContext(), context.getLocale(),
+                        context.getUserLogin());
+                String priceString = prices.getDefaultPrice() != null ? prices.getDefaultPrice() : prices.getListPrice();
+                if (priceString != null) {
+                    BigDecimal price = new BigDecimal(priceString);
+                    priceMin = priceMin == null || price.compareTo(priceMin) < 0 ? price : priceMin;
+                    priceMax = priceMax == null || price.compareTo(priceMax) > 0 ? price : priceMax;
+                }
+                BigDecimal variantStock = stockByVariantId.get(variantId);
+                if (variantStock != null) {
+                    stock = stock.add(variantStock);
+                }
+                Set<String> variantFeatures = featuresByVariantId.getOrDefault(variantId, new LinkedHashSet<>());
+                features.addAll(variantFeatures);
+                if (nested) {
+                    Map<String, Object> child = new HashMap<>();
+                    child.put("productId", variantId);
+                    child.put("parentProductId", productId);
+                    child.put("docType", SolrUtil.DOC_TYPE_VARIANT);
+                    child.put("internalName", variant.get("internalName"));
+                    child.put("listPrice", prices.getListPrice());
+                    child.put("defaultPrice", prices.getDefaultPrice());
+                    child.put("inStock", variantStock != null ? variantStock.toBigInteger().toString() : null);
+                    child.put("variantFeatures", new ArrayList<>(variantFeatures));
+                    children.add(child);
+                }
+            }
+            if (priceMin != null) {
+                fields.put("variantPriceMin", priceMin.toString());
+                fields.put("variantPriceMax", priceMax.toString());
+            }
+            fields.put("variantInStock", stock.toBigInteger().toString());
+            fields.put("variantCount", variantCount);
+            fields.put("variantFeatures", new ArrayList<>(features));
+            if (nested) {
+                fields.put("variants", children);
+            }
+        }
+    }
+}
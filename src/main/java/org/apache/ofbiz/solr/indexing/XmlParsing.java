@@ -33,6 +33,7 @@ import java.sql.Timestamp;
 
 import java.io.IOException;
 import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.solr.PiesBlockJoin;
 import org.apache.ofbiz.solr.SolrUtil;
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.impl.HttpSolrClient;
@@ -42,6 +43,8 @@ import org.apache.solr.client.solrj.request.UpdateRequest;
 public class XmlParsing {
     public static final String MODULE = XmlParsing.class.getName();
     private static final String RESOURCE = "SolrUiLabels";
+    private static final String[] PACKAGE_DIMENSIONS = {"Weight", "InnerQuantity", "MerchandisingHeight", "MerchandisingWidth",
+        "MerchandisingLength", "ShippingHeight", "ShippingWidth", "ShippingLength"};
 
     public static Map<String, Object> parseXml(DispatchContext dctx, Map<String, Object> context) {
         String filePath = (String) context.get("filePath");
@@ -183,12 +186,15 @@ public class XmlParsing {
                 }
                 SolrInputDocument doc = new SolrInputDocument();
                 doc.addField("productId", partNumber);
+                doc.addField("partNumber", partNumber);
+                doc.addField("docType", SolrUtil.DOC_TYPE_PRODUCT);
                 doc.addField("idValue", item.get("ItemLevelGTIN"));
-                doc.addField("piecesIncluded", item.get("ItemQuantitySize"));
-                doc.addField("quantityIncluded", item.get("QuantityPerApplication"));
-                doc.addField("orderDecimalQuantity", item.get("MinimumOrderQuantity"));
+                doc.addField("piecesIncluded", toNumber(item.get("ItemQuantitySize")));
+                doc.addField("quantityIncluded", toNumber(item.get("QuantityPerApplication")));
+                doc.addField("orderDecimalQuantity", toNumber(item.get("MinimumOrderQuantity")));
                 doc.addField("brandAAIAID", item.get("BrandAAIAID"));
                 doc.addField("brandLabel", item.get("BrandLabel"));
+                SolrUtil.addSuggestFields(doc, Collections.emptyList(), UtilMisc.toList(item.get("BrandLabel"), partNumber));
                 doc.addField("subBrandAAIAID", item.get("SubBrandAAIAID"));
                 doc.addField("subBrandLabel", item.get("SubBrandLabel"));
                 doc.addField("partTerminologyID", item.get("PartTerminologyID"));
@@ -282,6 +288,9 @@ public class XmlParsing {
                 if (!packagesStr.isEmpty()) {
                     doc.addField("packages", packagesStr);
                 }
+                if (packages != null) {
+                    addPackageFields(doc, packages);
+                }
 
                 List<Map<String, String>> prices = UtilGenerics.cast(item.get("prices"));
                 StringBuilder priceText = new StringBuilder();
@@ -307,6 +316,9 @@ public class XmlParsing {
                 if (!pricesStr.isEmpty()) {
                     doc.addField("prices", pricesStr);
                 }
+                if (prices != null) {
+                    addPriceFields(doc, prices);
+                }
 
                 List<Map<String, String>> digitalAssets = UtilGenerics.cast(item.get("digitalAssets"));
                 StringBuilder assetText = new StringBuilder();
@@ -360,7 +372,7 @@ public class XmlParsing {
                 List<SolrInputDocument> children = new ArrayList<>();
                 if (descriptions != null) {
                     for (Map<String, String> description : descriptions) {
-                        SolrInputDocument child = new SolrInputDocument();
+                        SolrInputDocument child = newChildDocument(partNumber, PiesBlockJoin.CHILD_DESCRIPTION, children.size());
                         child.addField("type", "description - " + partNumber);
                         child.addField("descriptionCode", description.get("DescriptionCode"));
                         child.addField("languageCode", description.get("LanguageCode"));
@@ -371,7 +383,7 @@ public class XmlParsing {
                 }
                 if (extendedInfo != null) {
                     for (Map<String, String> ext : extendedInfo) {
-                        SolrInputDocument child = new SolrInputDocument();
+                        SolrInputDocument child = newChildDocument(partNumber, PiesBlockJoin.CHILD_EXTENDED_INFORMATION, children.size());
                         child.addField("type", "extendedInformation - " + partNumber);
                         child.addField("expiCode", ext.get("EXPICode"));
                         child.addField("extendedInfoText", ext.get("ExtendedProductInformation"));
@@ -381,7 +393,7 @@ public class XmlParsing {
                 }
                 if (productAttrs != null) {
                     for (Map<String, String> attr : productAttrs) {
-                        SolrInputDocument child = new SolrInputDocument();
+                        SolrInputDocument child = newChildDocument(partNumber, PiesBlockJoin.CHILD_PRODUCT_ATTRIBUTE, children.size());
                         child.addField("type", "productAttribute - " + partNumber);
                         child.addField("attributeID", attr.get("AttributeID"));
                         child.addField("attributeText", attr.get("ProductAttribute"));
@@ -391,7 +403,7 @@ public class XmlParsing {
                 }
                 if (packages != null) {
                     for (Map<String, String> pkg : packages) {
-                        SolrInputDocument child = new SolrInputDocument();
+                        SolrInputDocument child = newChildDocument(partNumber, PiesBlockJoin.CHILD_PACKAGE, children.size());
                         child.addField("type", "package - " + partNumber);
                         for (Map.Entry<String, String> entry : pkg.entrySet()) {
                             child.addField("package_" + entry.getKey(), entry.getValue());
@@ -402,18 +414,18 @@ public class XmlParsing {
                 }
                 if (prices != null) {
                     for (Map<String, String> price : prices) {
-                        SolrInputDocument child = new SolrInputDocument();
+                        SolrInputDocument child = newChildDocument(partNumber, PiesBlockJoin.CHILD_PRICE, children.size());
                         child.addField("type", "price - " + partNumber);
                         child.addField("priceType", price.get("PriceType"));
                         child.addField("currencyCode", price.get("CurrencyCode"));
-                        child.addField("priceValue", price.get("Price"));
+                        child.addField("priceValue", toNumber(price.get("Price")));
                         Debug.logInfo("Adding Pricing child doc for PartNumber " + partNumber + ": " + price, MODULE);
                         children.add(child);
                     }
                 }
                 if (digitalAssets != null) {
                     for (Map<String, String> digitalAsset : digitalAssets) {
-                        SolrInputDocument child = new SolrInputDocument();
+                        SolrInputDocument child = newChildDocument(partNumber, PiesBlockJoin.CHILD_DIGITAL_ASSET, children.size());
                         child.addField("type", "digital-asset - " + partNumber);
                         for (Map.Entry<String, String> entry : digitalAsset.entrySet()) {
                             child.addField("digitalAsset_" + entry.getKey(), entry.getValue());
@@ -424,7 +436,7 @@ public class XmlParsing {
                 }
                 if (interchanges != null) {
                     for (Map<String, String> part : interchanges) {
-                        SolrInputDocument child = new SolrInputDocument();
+                        SolrInputDocument child = newChildDocument(partNumber, PiesBlockJoin.CHILD_PART_INTERCHANGE, children.size());
                         child.addField("type", "partInterchange - " + partNumber);
                         for (Map.Entry<String, String> entry : part.entrySet()) {
                             child.addField("interchange_" + entry.getKey(), entry.getValue());
@@ -456,6 +468,74 @@ public class XmlParsing {
         return result;
     }
 
+    /**
+     * Returns the value as a number, or null when it is empty or not numeric so that it is not indexed.
+     */
+    private static Double toNumber(Object value) {
+        if (value == null || UtilValidate.isEmpty(value.toString().trim())) {
+            return null;
+        }
+        try {
+            return new BigDecimal(value.toString().trim()).doubleValue();
+        } catch (NumberFormatException e) {
+            Debug.logWarning("Solr: Not indexing non numeric value " + value, MODULE);
+            return null;
+        }
+    }
+
+    private static String toFieldName(String value) {
+        return value != null ? value.replaceAll("[^A-Za-z0-9]", "") : "";
+    }
+
+    /**
+     * Adds the lowest price of each price type to the typed price_[PriceType] fields.
+     */
+    private static void addPriceFields(SolrInputDocument doc, List<Map<String, String>> prices) {
+        Map<String, Double> lowestPrices = new TreeMap<>();
+        for (Map<String, String> price : prices) {
+            String priceType = toFieldName(price.get("PriceType"));
+            Double value = toNumber(price.get("Price"));
+            if (!priceType.isEmpty() && value != null) {
+                lowestPrices.merge(priceType, value, Math::min);
+            }
+        }
+        for (Map.Entry<String, Double> entry : lowestPrices.entrySet()) {
+            doc.addField("price_" + entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Adds the numeric values of each package level to the typed pkg_[PackageUOM]_[dimension] fields, ie
+     * pkg_EA_weight or pkg_CA_shippingHeight; packages without a unit of measure have no typed fields.
+     */
+    private static void addPackageFields(SolrInputDocument doc, List<Map<String, String>> packages) {
+        Set<String> uoms = new HashSet<>();
+        for (Map<String, String> pkg : packages) {
+            String uom = toFieldName(pkg.get("PackageUOM"));
+            // the typed fields are single valued, the first package of a unit of measure wins
+            if (uom.isEmpty() || !uoms.add(uom)) {
+                continue;
+            }
+            for (String dimension : PACKAGE_DIMENSIONS) {
+                Double value = toNumber(pkg.get(dimension));
+                if (value != null) {
+                    doc.addField("pkg_" + uom + "_" + Character.toLowerCase(dimension.charAt(0)) + dimension.substring(1), value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a child document of the item, with a unique key of its own and its kind in childType for block join queries.
+     */
+    private static SolrInputDocument newChildDocument(Object partNumber, String childType, int position) {
+        SolrInputDocument child = new SolrInputDocument();
+        child.addField("productId", partNumber + "/" + childType + "/" + position);
+        child.addField("childType", childType);
+        child.addField("parentProductId", partNumber);
+        return child;
+    }
+
     private static void processItemAttributes(XMLEventReader reader, String tagName, Map<String, Object> currentItem) throws Exception {
         Debug.logInfo("Processing attribute: " + tagName, MODULE);
         //used to store values of these tags if these tags are encountered
@@ -0,0 +1,102 @@
+/*
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package org.apache.ofbiz.solr.test;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.ofbiz.base.util.UtilGenerics;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.service.testtools.OFBizTestCase;
+import org.apache.ofbiz.solr.CategoryTreeSnapshot;
+import org.apache.ofbiz.solr.SolrUtil;
+import org.apache.ofbiz.solr.indexing.CategoryImpactAnalyzer;
+import org.apache.solr.common.SolrInputDocument;
+
+public class CategoryImpactTests extends OFBizTestCase {
+
+    public CategoryImpactTests(String name) {
+        super(name);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // the snapshot may predate the test data
+        CategoryTreeSnapshot.invalidate(getDelegator());
+    }
+
+    private static Collection<String> getSetValues(SolrInputDocument doc, String field) {
+        Map<String, Object> update = UtilGenerics.cast(doc.getFieldValue(field));
+        assertNotNull("No atomic update of " + field, update);
+        assertEquals(UtilMisc.toSet("set"), update.keySet());
+        return UtilGenerics.cast(update.get("set"));
+    }
+
+    /**
+     * Test the members of the category and of all categories below it are impacted, and no others.
+     */
+    public void testDescendantWalk() throws Exception {
+        Set<String> productIds = CategoryImpactAnalyzer.getImpactedProductIds(getDelegator(), "SOLR_IMPACT_ROOT");
+        assertEquals(UtilMisc.toSet("SOLR_IMPACT_PRODUCT", "SOLR_IMPACT_VARIANT"), productIds);
+
+        productIds = CategoryImpactAnalyzer.getImpactedProductIds(getDelegator(), "SOLR_IMPACT_LEAF");
+        assertEquals(UtilMisc.toSet("SOLR_IMPACT_PRODUCT"), productIds);
+    }
+
+    /**
+     * Test the flat mode atomic update only sets the category and catalog fields, with the whole trail.
+     */
+    public void testCategoryUpdates() throws Exception {
+        List<SolrInputDocument> docs = CategoryImpactAnalyzer.makeCategoryUpdates(getDelegator(), UtilMisc.toList("SOLR_IMPACT_PRODUCT"));
+        assertEquals(1, docs.size());
+        SolrInputDocument doc = docs.get(0);
+        assertEquals(UtilMisc.toSet("productId", "cat", "cat_tree", "categoryId", "catalog"), doc.getFieldNames());
+        assertEquals("SOLR_IMPACT_PRODUCT", doc.getFieldValue("productId"));
+
+        Collection<String> categoryIds = getSetValues(doc, "categoryId");
+        assertTrue(categoryIds.toString(), categoryIds.containsAll(UtilMisc.toList("SOLR_IMPACT_ROOT", "SOLR_IMPACT_CHILD", "SOLR_IMPACT_LEAF")));
+        assertFalse(categoryIds.toString(), categoryIds.contains("SOLR_IMPACT_OTHER"));
+        Collection<String> trails = getSetValues(doc, "cat");
+        assertTrue(trails.toString(), trails.contains("2/SOLR_IMPACT_ROOT/SOLR_IMPACT_CHILD/SOLR_IMPACT_LEAF"));
+        assertFalse("No category tree paths", getSetValues(doc, "cat_tree").isEmpty());
+        getSetValues(doc, "catalog");
+    }
+
+    /**
+     * Test the nested mode reindex replaces variants by their virtual product.
+     */
+    public void testTopLevelIds() throws Exception {
+        Set<String> productIds = CategoryImpactAnalyzer.getTopLevelIds(getDelegator(),
+                UtilMisc.toList("SOLR_IMPACT_PRODUCT", "SOLR_IMPACT_VARIANT"));
+        assertEquals(UtilMisc.toSet("SOLR_IMPACT_PRODUCT", "SOLR_IMPACT_VIRTUAL"), productIds);
+    }
+
+    /**
+     * Test the terms queries of ids containing the separator.
+     */
+    public void testTermsQuery() {
+        assertEquals("{!terms f=productId separator=','}A,B", SolrUtil.makeTermsQuery("productId", UtilMisc.toList("A", "B")));
+        assertEquals("{!terms f=productId separator='|'}A,1|B", SolrUtil.makeTermsQuery("productId", UtilMisc.toList("A,1", "B")));
+        assertEquals("{!terms f=productId separator=';'}A,1;B|2", SolrUtil.makeTermsQuery("productId", UtilMisc.toList("A,1", "B|2")));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package org.apache.ofbiz.solr.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.ofbiz.service.testtools.OFBizTestCase;
+import org.apache.ofbiz.solr.FacetProfile;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+
+public class FacetProfileTests extends OFBizTestCase {
+
+    private static final String PREFIX = "solr.facet.profile.test.";
+
+    public FacetProfileTests(String name) {
+        super(name);
+    }
+
+    private static Properties makeProperties() {
+        Properties properties = new Properties();
+        properties.setProperty(PREFIX + "fields", "manu, cat");
+        properties.setProperty(PREFIX + "limit", "5");
+        properties.setProperty(PREFIX + "mincount", "2");
+        properties.setProperty(PREFIX + "ranges", "listPrice,weight");
+        properties.setProperty(PREFIX + "range.listPrice.bounds", "0,50,100");
+        properties.setProperty(PREFIX + "range.weight.start", "0");
+        properties.setProperty(PREFIX + "range.weight.end", "10");
+        properties.setProperty(PREFIX + "range.weight.gap", "4");
+        return properties;
+    }
+
+    private static NamedList<Object> makeBucket(Object value, long count) {
+        NamedList<Object> bucket = new SimpleOrderedMap<>();
+        bucket.add("val", value);
+        bucket.add("count", count);
+        return bucket;
+    }
+
+    private static NamedList<Object> makeFacet(NamedList<?>... buckets) {
+        List<NamedList<?>> bucketList = new ArrayList<>();
+        for (NamedList<?> bucket : buckets) {
+            bucketList.add(bucket);
+        }
+        NamedList<Object> facet = new SimpleOrderedMap<>();
+        facet.add("buckets", bucketList);
+        return facet;
+    }
+
+    /**
+     * Test the terms and range facets of a loaded profile.
+     */
+    public void testLoadBuildsFacets() {
+        FacetProfile profile = FacetProfile.load("test", makeProperties());
+        assertNotNull("Profile not loaded", profile);
+        assertEquals(5, profile.getLimit());
+        assertEquals(2, profile.getMinCount());
+
+        SolrQuery solrQuery = new SolrQuery("*:*");
+        profile.apply(solrQuery);
+        String jsonFacet = solrQuery.get("json.facet");
+        assertTrue(jsonFacet, jsonFacet.contains("manu:{type:terms,field:manu,limit:5,mincount:2}"));
+        assertTrue(jsonFacet, jsonFacet.contains("cat:{type:terms,field:cat,limit:5,mincount:2}"));
+        // explicit bounds, the last bucket is open ended
+        assertTrue(jsonFacet, jsonFacet.contains("range_listPrice:{type:range,field:listPrice,"
+                + "ranges:[{range:\"[0,50]\"},{range:\"[50,100]\"},{range:\"[100,*]\"}]}"));
+        assertTrue(jsonFacet, jsonFacet.contains("range_weight:{type:range,field:weight,start:0,end:10,gap:4,hardend:true}"));
+    }
+
+    /**
+     * Test a profile without facets is not loaded.
+     */
+    public void testLoadWithoutFacets() {
+        assertNull(FacetProfile.load("missing", makeProperties()));
+        assertNull(FacetProfile.load("test", new Properties()));
+    }
+
+    /**
+     * Test the range buckets of the response are labelled and keyed by their filter query.
+     */
+    public void testGetRangeCounts() {
+        FacetProfile profile = FacetProfile.load("test", makeProperties());
+        NamedList<Object> facets = new SimpleOrderedMap<>();
+        facets.add("count", 10L);
+        facets.add("range_listPrice", makeFacet(makeBucket("[0,50]", 3), makeBucket("[50,100]", 0), makeBucket("[100,*]", 2)));
+        // start/end/gap buckets come back keyed by their numeric start
+        facets.add("range_weight", makeFacet(makeBucket(0.0, 1), makeBucket(4L, 2), makeBucket(8.0, 0)));
+        NamedList<Object> response = new NamedList<>();
+        response.add("facets", facets);
+
+        Map<String, String> rangeCounts = profile.getRangeCounts(new QueryResponse(response, null));
+        assertEquals(4, rangeCounts.size());
+        assertEquals("0 TO 50 (3)", rangeCounts.get("listPrice:[0 TO 50]"));
+        assertEquals("100 TO * (2)", rangeCounts.get("listPrice:[100 TO *]"));
+        assertEquals("0 TO 4 (1)", rangeCounts.get("weight:[0 TO 4}"));
+        assertEquals("4 TO 8 (2)", rangeCounts.get("weight:[4 TO 8}"));
+        assertFalse("Empty bucket returned", rangeCounts.containsKey("listPrice:[50 TO 100]"));
+    }
+
+    /**
+     * Test an unknown profile falls back to the default profile, kept under its name.
+     */
+    public void testUnknownProfile() {
+        FacetProfile defaultProfile = FacetProfile.get(FacetProfile.DEFAULT_PROFILE);
+        assertSame(defaultProfile, FacetProfile.get("unknownTestProfile"));
+        assertSame(defaultProfile, FacetProfile.get("unknownTestProfile"));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package org.apache.ofbiz.solr.test;
+
+import java.math.BigDecimal;
+
+import org.apache.ofbiz.service.testtools.OFBizTestCase;
+import org.apache.ofbiz.solr.indexing.InventoryAtpAggregator;
+
+public class InventoryAtpTests extends OFBizTestCase {
+
+    public InventoryAtpTests(String name) {
+        super(name);
+    }
+
+    /**
+     * Test a total loaded without concurrent change is stored, and dropped by the next change.
+     */
+    public void testStoreAndInvalidate() {
+        String productId = "SOLR_ATP_TEST_1";
+        long generation = InventoryAtpAggregator.getGeneration(productId);
+        assertTrue(InventoryAtpAggregator.store(productId, BigDecimal.TEN, generation));
+        assertEquals(BigDecimal.TEN, InventoryAtpAggregator.getStoredTotal(productId));
+
+        InventoryAtpAggregator.invalidate(productId);
+        assertNull("Total kept after change", InventoryAtpAggregator.getStoredTotal(productId));
+        assertTrue(InventoryAtpAggregator.getGeneration(productId) > generation);
+    }
+
+    /**
+     * Test a total loaded before a change committed is not stored: the loader reads the generation, queries the
+     * old total, the change commits, then the loader stores.
+     */
+    public void testChangeDuringLoad() {
+        String productId = "SOLR_ATP_TEST_2";
+        long generation = InventoryAtpAggregator.getGeneration(productId);
+        BigDecimal loadedTotal = BigDecimal.TEN;
+        InventoryAtpAggregator.invalidate(productId);
+
+        assertFalse("Stale total stored", InventoryAtpAggregator.store(productId, loadedTotal, generation));
+        assertNull(InventoryAtpAggregator.getStoredTotal(productId));
+
+        // the next load, after the commit, is stored
+        assertTrue(InventoryAtpAggregator.store(productId, BigDecimal.ONE, InventoryAtpAggregator.getGeneration(productId)));
+        assertEquals(BigDecimal.ONE, InventoryAtpAggregator.getStoredTotal(productId));
+        InventoryAtpAggregator.invalidate(productId);
+    }
+}
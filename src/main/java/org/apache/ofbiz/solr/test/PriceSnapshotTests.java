@@ -0,0 +1,86 @@
+/*
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package org.apache.ofbiz.solr.test;
+
+import java.math.BigDecimal;
+import java.util.Set;
+
+import org.apache.ofbiz.service.testtools.OFBizTestCase;
+import org.apache.ofbiz.solr.indexing.PriceSnapshotStore;
+import org.apache.ofbiz.solr.indexing.PriceSnapshotStore.PriceSnapshot;
+
+public class PriceSnapshotTests extends OFBizTestCase {
+
+    public PriceSnapshotTests(String name) {
+        super(name);
+    }
+
+    /**
+     * Test a variant price change reaches its virtual product, and a virtual price change its variants.
+     */
+    public void testVariantDependencies() throws Exception {
+        Set<String> productIds = PriceSnapshotStore.getDependentProductIds(getDelegator(), "SOLR_PRICE_VARIANT");
+        assertTrue(productIds.toString(), productIds.contains("SOLR_PRICE_VARIANT"));
+        assertTrue(productIds.toString(), productIds.contains("SOLR_PRICE_VIRTUAL"));
+
+        productIds = PriceSnapshotStore.getDependentProductIds(getDelegator(), "SOLR_PRICE_VIRTUAL");
+        assertTrue(productIds.toString(), productIds.contains("SOLR_PRICE_VARIANT"));
+    }
+
+    /**
+     * Test a component price change reaches the aggregated products configured with it.
+     */
+    public void testComponentDependencies() throws Exception {
+        Set<String> productIds = PriceSnapshotStore.getDependentProductIds(getDelegator(), "SOLR_PRICE_COMPONENT");
+        assertTrue(productIds.toString(), productIds.contains("SOLR_PRICE_COMPONENT"));
+        assertTrue(productIds.toString(), productIds.contains("SOLR_PRICE_CONFIG"));
+        assertFalse(productIds.toString(), productIds.contains("SOLR_PRICE_VIRTUAL"));
+    }
+
+    /**
+     * Test a snapshot computed before a price change is not stored: the indexer reads the generation, computes
+     * the old prices, the change commits and drops the snapshot, then the indexer stores.
+     */
+    public void testChangeDuringCompute() {
+        String productId = "SOLR_PRICE_TEST_1";
+        long generation = PriceSnapshotStore.getGeneration(productId);
+        PriceSnapshot oldPrices = new PriceSnapshot(BigDecimal.TEN, BigDecimal.TEN);
+        PriceSnapshotStore.invalidate(productId);
+
+        assertFalse("Old prices stored", PriceSnapshotStore.store(productId, oldPrices, generation));
+        assertNull(PriceSnapshotStore.getStoredSnapshot(productId));
+
+        PriceSnapshot newPrices = new PriceSnapshot(BigDecimal.ONE, BigDecimal.ONE);
+        assertTrue(PriceSnapshotStore.store(productId, newPrices, PriceSnapshotStore.getGeneration(productId)));
+        assertSame(newPrices, PriceSnapshotStore.getStoredSnapshot(productId));
+        PriceSnapshotStore.invalidate(productId);
+    }
+
+    /**
+     * Test a snapshot computed before all snapshots are dropped is not stored.
+     */
+    public void testClearDuringCompute() {
+        String productId = "SOLR_PRICE_TEST_2";
+        long generation = PriceSnapshotStore.getGeneration(productId);
+        PriceSnapshotStore.clear();
+        assertFalse("Old prices stored", PriceSnapshotStore.store(productId, new PriceSnapshot(BigDecimal.TEN, null), generation));
+        assertNull(PriceSnapshotStore.getStoredSnapshot(productId));
+    }
+}
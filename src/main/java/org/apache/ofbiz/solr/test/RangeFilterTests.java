@@ -0,0 +1,91 @@
+/*
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package org.apache.ofbiz.solr.test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.service.testtools.OFBizTestCase;
+import org.apache.ofbiz.solr.SolrUtil;
+import org.apache.solr.client.solrj.SolrQuery;
+
+public class RangeFilterTests extends OFBizTestCase {
+
+    public RangeFilterTests(String name) {
+        super(name);
+    }
+
+    private static List<String> getFilterQueries(String field, String range) {
+        SolrQuery solrQuery = new SolrQuery("*:*");
+        SolrUtil.addRangeFilters(solrQuery, UtilMisc.toMap(field, range));
+        String[] filterQueries = solrQuery.getFilterQueries();
+        return filterQueries != null ? Arrays.asList(filterQueries) : null;
+    }
+
+    private static void assertRejected(String field, String range) {
+        try {
+            getFilterQueries(field, range);
+            fail("Range " + range + " accepted for field " + field);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test closed and open ended bounds.
+     */
+    public void testBounds() {
+        assertEquals(UtilMisc.toList("price_JBR:[10 TO 50]"), getFilterQueries("price_JBR", "10,50"));
+        assertEquals(UtilMisc.toList("pkg_EA_weight:[* TO 2.5]"), getFilterQueries("pkg_EA_weight", ",2.5"));
+        assertEquals(UtilMisc.toList("pkg_EA_weight:[10 TO *]"), getFilterQueries("pkg_EA_weight", "10,"));
+        // bounds are normalized numbers, whatever their notation
+        assertEquals(UtilMisc.toList("pkg_EA_weight:[* TO 1000]"), getFilterQueries("pkg_EA_weight", "*, 1E+3 "));
+    }
+
+    /**
+     * Test a range open on both sides adds no filter.
+     */
+    public void testUnboundedRange() {
+        assertNull(getFilterQueries("price_JBR", ","));
+        assertNull(getFilterQueries("price_JBR", "*,*"));
+    }
+
+    /**
+     * Test field names that could inject query syntax are rejected.
+     */
+    public void testInvalidField() {
+        assertRejected("price:x", "1,2");
+        assertRejected("a b", "1,2");
+        assertRejected("price_JBR)", "1,2");
+        assertRejected("", "1,2");
+    }
+
+    /**
+     * Test bounds that are not numbers, and ranges without exactly one comma, are rejected.
+     */
+    public void testInvalidBounds() {
+        assertRejected("price_JBR", "abc,5");
+        assertRejected("price_JBR", "5,10]");
+        assertRejected("price_JBR", "5");
+        assertRejected("price_JBR", "1,2,3");
+        assertRejected("price_JBR", null);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package org.apache.ofbiz.solr.test;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.service.testtools.OFBizTestCase;
+import org.apache.ofbiz.solr.SearchResultCache;
+
+public class SearchResultCacheTests extends OFBizTestCase {
+
+    public SearchResultCacheTests(String name) {
+        super(name);
+    }
+
+    private static String makeKey(Map<String, Object> parameters) {
+        return SearchResultCache.makeKey("solrProductsSearch", "solrdefault", 1, parameters);
+    }
+
+    /**
+     * Test empty and ignored parameters do not change the key.
+     */
+    public void testIgnoredParameters() {
+        Map<String, Object> parameters = new LinkedHashMap<>();
+        parameters.put("productCategoryId", "CATALOG1");
+        String key = makeKey(parameters);
+
+        parameters.put("queryFilter", "");
+        parameters.put("facetProfile", null);
+        parameters.put("rangeFilters", new LinkedHashMap<>());
+        parameters.put("userLogin", UtilMisc.toMap("userLoginId", "admin"));
+        parameters.put("locale", Locale.FRENCH);
+        parameters.put("timeZone", "Europe/Paris");
+        assertEquals(key, makeKey(parameters));
+
+        parameters.put("viewSize", "10");
+        assertFalse("Parameter ignored", key.equals(makeKey(parameters)));
+    }
+
+    /**
+     * Test the order of the parameters and of the entries of their map values does not change the key.
+     */
+    public void testParameterOrder() {
+        Map<String, Object> rangeFilters = new LinkedHashMap<>();
+        rangeFilters.put("price_JBR", "10,50");
+        rangeFilters.put("pkg_EA_weight", ",2.5");
+        Map<String, Object> parameters = new LinkedHashMap<>();
+        parameters.put("productCategoryId", "CATALOG1");
+        parameters.put("viewSize", "10");
+        parameters.put("rangeFilters", rangeFilters);
+
+        Map<String, Object> reversedFilters = new LinkedHashMap<>();
+        reversedFilters.put("pkg_EA_weight", ",2.5");
+        reversedFilters.put("price_JBR", "10,50");
+        Map<String, Object> reversed = new LinkedHashMap<>();
+        reversed.put("rangeFilters", reversedFilters);
+        reversed.put("viewSize", "10");
+        reversed.put("productCategoryId", "CATALOG1");
+
+        assertEquals(makeKey(parameters), makeKey(reversed));
+    }
+
+    /**
+     * Test string values are not trimmed, as the services query with the untrimmed values, and the index, its
+     * version and the service are part of the key.
+     */
+    public void testKeyValues() {
+        Map<String, Object> parameters = UtilMisc.toMap("productCategoryId", "CATALOG1");
+        assertFalse(makeKey(parameters).equals(makeKey(UtilMisc.toMap("productCategoryId", " CATALOG1 "))));
+        assertFalse(makeKey(parameters).equals(SearchResultCache.makeKey("solrProductsSearch", "solrdefault", 2, parameters)));
+        assertFalse(makeKey(parameters).equals(SearchResultCache.makeKey("solrProductsSearch", "pies", 1, parameters)));
+        assertFalse(makeKey(parameters).equals(SearchResultCache.makeKey("solrKeywordSearch", "solrdefault", 1, parameters)));
+    }
+}